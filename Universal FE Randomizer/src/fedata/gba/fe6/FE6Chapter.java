@@ -9,7 +9,7 @@ import fedata.gba.GBAFEChapterData;
 import fedata.gba.GBAFEChapterItemData;
 import fedata.gba.GBAFEChapterUnitData;
 import fedata.gba.general.CharacterNudge;
-import io.FileHandler;
+import io.RomImage;
 import util.DebugPrinter;
 import util.FileReadHelper;
 import util.WhyDoesJavaNotHaveThese;
@@ -45,7 +45,7 @@ public class FE6Chapter implements GBAFEChapterData {
 	
 	private CharacterNudge[] nudges;
 	
-	public FE6Chapter(FileHandler handler, long pointer, Boolean isClassSafe, Boolean removeFightScenes, int[] blacklistedClassIDs, String friendlyName, Boolean simple, CharacterNudge[] nudgesRequired) {
+	public FE6Chapter(RomImage handler, long pointer, Boolean isClassSafe, Boolean removeFightScenes, int[] blacklistedClassIDs, String friendlyName, Boolean simple, CharacterNudge[] nudgesRequired) {
 		this.friendlyName = friendlyName;
 		this.blacklistedClassIDs = new HashSet<Integer>();
 		for (int classID : blacklistedClassIDs) {
@@ -167,7 +167,7 @@ public class FE6Chapter implements GBAFEChapterData {
 		}
 	}
 	
-	private void loadUnits(FileHandler handler) {
+	private void loadUnits(RomImage handler) {
 		Set<Long> addressesSearched = new HashSet<Long>();
 		// Look in the obvious places first.
 		loadUnitsFromAddress(handler, allyUnitsOffset);
@@ -194,7 +194,7 @@ public class FE6Chapter implements GBAFEChapterData {
 		}
 	}
 	
-	private Set<Long> eventAddressesFromTurnEvents(FileHandler handler) {
+	private Set<Long> eventAddressesFromTurnEvents(RomImage handler) {
 		Set<Long> eventAddresses = new HashSet<Long>();
 		byte[] turnCommand;
 		long currentAddress = turnBasedEventsOffset;
@@ -218,7 +218,7 @@ public class FE6Chapter implements GBAFEChapterData {
 		return eventAddresses;
 	}
 	
-	private Set<Long> eventAddressesFromCharacterEvents(FileHandler handler) {
+	private Set<Long> eventAddressesFromCharacterEvents(RomImage handler) {
 		Set<Long> eventAddresses = new HashSet<Long>();
 		byte[] charCommand;
 		long currentAddress = characterBasedEventsOffset;
@@ -240,7 +240,7 @@ public class FE6Chapter implements GBAFEChapterData {
 		return eventAddresses;
 	}
 	
-	private Set<Long> eventAddressesFromLocationEvents(FileHandler handler) {
+	private Set<Long> eventAddressesFromLocationEvents(RomImage handler) {
 		Set<Long> eventAddresses = new HashSet<Long>();
 		byte[] locationCommand;
 		long currentAddress = locationBasedEventsOffset;
@@ -269,7 +269,7 @@ public class FE6Chapter implements GBAFEChapterData {
 		return eventAddresses;
 	}
 	
-	private Set<Long> eventAddressesFromMiscEvents(FileHandler handler) {
+	private Set<Long> eventAddressesFromMiscEvents(RomImage handler) {
 		Set<Long> eventAddresses = new HashSet<Long>();
 		byte[] miscCommand;
 		long currentAddress = miscEventsOffset;
@@ -294,7 +294,7 @@ public class FE6Chapter implements GBAFEChapterData {
 		return eventAddresses;
 	}
 	
-	private void recordFightAddressesFromEventBlob(FileHandler handler, long eventAddress) {
+	private void recordFightAddressesFromEventBlob(RomImage handler, long eventAddress) {
 		if (eventAddress >= 0x1000000) { return; }
 		
 		DebugPrinter.log(DebugPrinter.Key.CHAPTER_LOADER, "Searching for fights beginning at 0x" + Long.toHexString(eventAddress));
@@ -335,7 +335,7 @@ public class FE6Chapter implements GBAFEChapterData {
 		DebugPrinter.log(DebugPrinter.Key.CHAPTER_LOADER, "Finished searching for fights at 0x" + Long.toHexString(currentAddress));
 	}
 	
-	private Set<Long> unitAddressesFromEventBlob(FileHandler handler, long eventAddress) {
+	private Set<Long> unitAddressesFromEventBlob(RomImage handler, long eventAddress) {
 		Set<Long> addressesLoaded = new HashSet<Long>();
 		if (eventAddress >= 0x1000000) { return addressesLoaded; }
 		
@@ -381,7 +381,7 @@ public class FE6Chapter implements GBAFEChapterData {
 		return addressesLoaded;
 	}
 	
-	private void loadUnitsFromAddress(FileHandler handler, long unitAddress) {
+	private void loadUnitsFromAddress(RomImage handler, long unitAddress) {
 		if (unitAddress >= 0x1000000) { return; }
 		DebugPrinter.log(DebugPrinter.Key.CHAPTER_LOADER, "Loading units from 0x" + Long.toHexString(unitAddress));
 		long currentOffset = unitAddress;
@@ -407,7 +407,7 @@ public class FE6Chapter implements GBAFEChapterData {
 		}
 	}
 	
-	private void loadRewards(FileHandler handler) {
+	private void loadRewards(RomImage handler) {
 		byte[] locationCommand;
 		long currentAddress = locationBasedEventsOffset;
 		locationCommand = handler.readBytesAtOffset(currentAddress, 12); // These events are only 12 bytes long.
@@ -438,7 +438,7 @@ public class FE6Chapter implements GBAFEChapterData {
 		}
 	}
 	
-	private void loadRewardsFromEventBlob(FileHandler handler, long eventOffset) {
+	private void loadRewardsFromEventBlob(RomImage handler, long eventOffset) {
 		DebugPrinter.log(DebugPrinter.Key.CHAPTER_LOADER, "Searching for rewards beginning at 0x" + Long.toHexString(eventOffset));
 		byte[] commandWord;
 		long currentAddress = eventOffset;
@@ -6,7 +6,7 @@ import java.util.List;
 import fedata.gba.GBAFEWorldMapData;
 import fedata.gba.GBAFEWorldMapPortraitData;
 import fedata.gba.GBAFEWorldMapSpriteData;
-import io.FileHandler;
+import io.RomImage;
 import util.FileReadHelper;
 
 public class FE6WorldMapEvent implements GBAFEWorldMapData  {
@@ -77,7 +77,7 @@ public class FE6WorldMapEvent implements GBAFEWorldMapData  {
 	
 	private List<FE6WorldMapPortrait> portraitList = new ArrayList<FE6WorldMapPortrait>();
 	
-	public FE6WorldMapEvent(FileHandler handler, long offset) {
+	public FE6WorldMapEvent(RomImage handler, long offset) {
 		// We need one jump.
 		long pointerTableOffset = FileReadHelper.readAddress(handler, offset);
 		
@@ -9,7 +9,7 @@ import fedata.gba.GBAFEChapterData;
 import fedata.gba.GBAFEChapterItemData;
 import fedata.gba.GBAFEChapterUnitData;
 import fedata.gba.general.CharacterNudge;
-import io.FileHandler;
+import io.RomImage;
 import util.DebugPrinter;
 import util.FileReadHelper;
 import util.WhyDoesJavaNotHaveThese;
@@ -58,7 +58,7 @@ public class FE7Chapter implements GBAFEChapterData {
 	private int probableBossID = 0;
 	
 
-	public FE7Chapter(FileHandler handler, long pointer, Boolean isClassSafe, Boolean removeFightScenes, int[] blacklistedClassIDs, String friendlyName, Boolean simple) {
+	public FE7Chapter(RomImage handler, long pointer, Boolean isClassSafe, Boolean removeFightScenes, int[] blacklistedClassIDs, String friendlyName, Boolean simple) {
 		
 		this.friendlyName = friendlyName;
 		this.blacklistedClassIDs = new HashSet<Integer>();
@@ -194,7 +194,7 @@ public class FE7Chapter implements GBAFEChapterData {
 		}
 	}
 	
-	private void loadUnits(FileHandler handler) {
+	private void loadUnits(RomImage handler) {
 		Set<Long> addressesSearched = new HashSet<Long>();
 		// Look in the obvious places first.
 		loadUnitsFromAddress(handler, alliesOffsetENM);
@@ -249,7 +249,7 @@ public class FE7Chapter implements GBAFEChapterData {
 		}
 	}
 	
-	private Set<Long> eventAddressesFromTurnEvents(FileHandler handler) {
+	private Set<Long> eventAddressesFromTurnEvents(RomImage handler) {
 		Set<Long> eventAddresses = new HashSet<Long>();
 		byte[] turnCommand;
 		long currentAddress = turnBasedEventsOffset;
@@ -285,7 +285,7 @@ public class FE7Chapter implements GBAFEChapterData {
 		return eventAddresses;
 	}
 	
-	private Set<Long> eventAddressesFromCharacterEvents(FileHandler handler) {
+	private Set<Long> eventAddressesFromCharacterEvents(RomImage handler) {
 		Set<Long> eventAddresses = new HashSet<Long>();
 		byte[] charCommand;
 		long currentAddress = characterBasedEventsOffset;
@@ -307,7 +307,7 @@ public class FE7Chapter implements GBAFEChapterData {
 		return eventAddresses;
 	}
 	
-	private Set<Long> eventAddressesFromLocationEvents(FileHandler handler) {
+	private Set<Long> eventAddressesFromLocationEvents(RomImage handler) {
 		Set<Long> eventAddresses = new HashSet<Long>();
 		byte[] locationCommand;
 		long currentAddress = locationBasedEventsOffset;
@@ -331,7 +331,7 @@ public class FE7Chapter implements GBAFEChapterData {
 		return eventAddresses;
 	}
 	
-	private Set<Long> eventAddressesFromMiscEvents(FileHandler handler) {
+	private Set<Long> eventAddressesFromMiscEvents(RomImage handler) {
 		Set<Long> eventAddresses = new HashSet<Long>();
 		byte[] miscCommand;
 		long currentAddress = miscEventsOffset;
@@ -354,7 +354,7 @@ public class FE7Chapter implements GBAFEChapterData {
 		return eventAddresses;
 	}
 	
-	private void recordFightAddressesFromEventBlob(FileHandler handler, long eventAddress) {
+	private void recordFightAddressesFromEventBlob(RomImage handler, long eventAddress) {
 		if (eventAddress >= 0x1000000) { return; }
 		
 		DebugPrinter.log(DebugPrinter.Key.CHAPTER_LOADER, "Searching for fights beginning at 0x" + Long.toHexString(eventAddress));
@@ -429,7 +429,7 @@ public class FE7Chapter implements GBAFEChapterData {
 		DebugPrinter.log(DebugPrinter.Key.CHAPTER_LOADER, "Finished searching for fights at 0x" + Long.toHexString(currentAddress));
 	}
 	
-	private Set<Long> unitAddressesFromEventBlob(FileHandler handler, long eventAddress) {
+	private Set<Long> unitAddressesFromEventBlob(RomImage handler, long eventAddress) {
 		Set<Long> addressesLoaded = new HashSet<Long>();
 		if (eventAddress >= 0x1000000) { return addressesLoaded; }
 		
@@ -546,7 +546,7 @@ public class FE7Chapter implements GBAFEChapterData {
 		return addressesLoaded;
 	}
 	
-	private void loadUnitsFromAddress(FileHandler handler, long unitAddress) {
+	private void loadUnitsFromAddress(RomImage handler, long unitAddress) {
 		if (unitAddress >= 0x1000000) { return; }
 		DebugPrinter.log(DebugPrinter.Key.CHAPTER_LOADER, "Loading units from 0x" + Long.toHexString(unitAddress));
 		if (unitAddress <= 0xC00000) {
@@ -576,7 +576,7 @@ public class FE7Chapter implements GBAFEChapterData {
 		}
 	}
 	
-	private void loadRewards(FileHandler handler) {
+	private void loadRewards(RomImage handler) {
 		byte[] locationCommand;
 		long currentAddress = locationBasedEventsOffset;
 		locationCommand = handler.readBytesAtOffset(currentAddress, 12); // These events are only 12 bytes long.
@@ -608,7 +608,7 @@ public class FE7Chapter implements GBAFEChapterData {
 		}
 	}
 	
-	private void loadRewardsFromEventBlob(FileHandler handler, long eventOffset) {
+	private void loadRewardsFromEventBlob(RomImage handler, long eventOffset) {
 		DebugPrinter.log(DebugPrinter.Key.CHAPTER_LOADER, "Searching for rewards beginning at 0x" + Long.toHexString(eventOffset));
 		byte[] commandWord;
 		long currentAddress = eventOffset;
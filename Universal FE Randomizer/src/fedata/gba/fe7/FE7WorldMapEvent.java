@@ -6,7 +6,7 @@ import java.util.List;
 import fedata.gba.GBAFEWorldMapData;
 import fedata.gba.GBAFEWorldMapPortraitData;
 import fedata.gba.GBAFEWorldMapSpriteData;
-import io.FileHandler;
+import io.RomImage;
 import util.FileReadHelper;
 
 public class FE7WorldMapEvent implements GBAFEWorldMapData {
@@ -142,7 +142,7 @@ public class FE7WorldMapEvent implements GBAFEWorldMapData {
 	private List<FE7WorldMapPortrait> portraitList = new ArrayList<FE7WorldMapPortrait>();
 	private List<FE7WorldMapSprite> spriteList = new ArrayList<FE7WorldMapSprite>();
 	
-	public FE7WorldMapEvent(FileHandler handler, long offset) {
+	public FE7WorldMapEvent(RomImage handler, long offset) {
 		// We need one jump.
 		long pointerTableOffset = FileReadHelper.readAddress(handler, offset);
 		
@@ -13,7 +13,7 @@ import fedata.gba.GBAFEChapterData;
 import fedata.gba.GBAFEChapterItemData;
 import fedata.gba.GBAFEChapterUnitData;
 import fedata.gba.general.CharacterNudge;
-import io.FileHandler;
+import io.RomImage;
 import util.DebugPrinter;
 import util.FileReadHelper;
 import util.WhyDoesJavaNotHaveThese;
@@ -58,7 +58,7 @@ public class FE8Chapter implements GBAFEChapterData {
 	
 	private CharacterNudge[] nudges;
 	
-	public FE8Chapter(FileHandler handler, long pointer, Boolean isClassSafe, Boolean removeFightScenes, int[] blacklistedClassIDs, String friendlyName, Boolean simple, int[] targetedRewardRecipientsToTrack, int[] unarmedCharacters, long[] additionalUnitOffsets, CharacterNudge[] nudgesRequired) {
+	public FE8Chapter(RomImage handler, long pointer, Boolean isClassSafe, Boolean removeFightScenes, int[] blacklistedClassIDs, String friendlyName, Boolean simple, int[] targetedRewardRecipientsToTrack, int[] unarmedCharacters, long[] additionalUnitOffsets, CharacterNudge[] nudgesRequired) {
 		this.friendlyName = friendlyName;
 		this.blacklistedClassIDs = new HashSet<Integer>();
 		for (int classID : blacklistedClassIDs) {
@@ -206,7 +206,7 @@ public class FE8Chapter implements GBAFEChapterData {
 		}
 	}
 	
-	private void loadUnits(FileHandler handler) {
+	private void loadUnits(RomImage handler) {
 		Set<Long> addressesSearched = new HashSet<Long>();
 		// Look in the obvious places first.
 		loadUnitsFromAddress(handler, unitOffset);
@@ -237,7 +237,7 @@ public class FE8Chapter implements GBAFEChapterData {
 		}
 	}
 	
-	private Set<Long> eventAddressesFromTurnEvents(FileHandler handler) {
+	private Set<Long> eventAddressesFromTurnEvents(RomImage handler) {
 		Set<Long> eventAddresses = new HashSet<Long>();
 		byte[] turnCommand;
 		long currentAddress = turnBasedEventsOffset;
@@ -258,7 +258,7 @@ public class FE8Chapter implements GBAFEChapterData {
 		return eventAddresses;
 	}
 	
-	private Set<Long> eventAddressesFromCharacterEvents(FileHandler handler) {
+	private Set<Long> eventAddressesFromCharacterEvents(RomImage handler) {
 		Set<Long> eventAddresses = new HashSet<Long>();
 		byte[] charCommand;
 		long currentAddress = characterBasedEventsOffset;
@@ -280,7 +280,7 @@ public class FE8Chapter implements GBAFEChapterData {
 		return eventAddresses;
 	}
 	
-	private Set<Long> eventAddressesFromLocationEvents(FileHandler handler) {
+	private Set<Long> eventAddressesFromLocationEvents(RomImage handler) {
 		Set<Long> eventAddresses = new HashSet<Long>();
 		byte[] locationCommand;
 		long currentAddress = locationBasedEventsOffset;
@@ -309,7 +309,7 @@ public class FE8Chapter implements GBAFEChapterData {
 		return eventAddresses;
 	}
 	
-	private Set<Long> eventAddressesFromMiscEvents(FileHandler handler) {
+	private Set<Long> eventAddressesFromMiscEvents(RomImage handler) {
 		Set<Long> eventAddresses = new HashSet<Long>();
 		byte[] miscCommand;
 		long currentAddress = miscEventsOffset;
@@ -333,15 +333,15 @@ public class FE8Chapter implements GBAFEChapterData {
 		return eventAddresses;
 	}
 	
-	private void recordFightAddressesFromEventBlob(FileHandler handler, long eventAddress) {
+	private void recordFightAddressesFromEventBlob(RomImage handler, long eventAddress) {
 		// TODO
 	}
 	
-	private Set<Long> unitAddressesFromEventBlob(FileHandler handler, long eventAddress) {
+	private Set<Long> unitAddressesFromEventBlob(RomImage handler, long eventAddress) {
 		return unitAddressesFromEventBlob(handler, eventAddress, new MemoryValues());
 	}
 	
-	private Set<Long> unitAddressesFromEventBlob(FileHandler handler, long eventAddress, MemoryValues memSlots) {
+	private Set<Long> unitAddressesFromEventBlob(RomImage handler, long eventAddress, MemoryValues memSlots) {
 		Set<Long> addressesLoaded = new HashSet<Long>();
 		if (eventAddress >= 0x1000000) { return addressesLoaded; }
 		
@@ -464,7 +464,7 @@ public class FE8Chapter implements GBAFEChapterData {
 		return addressesLoaded;
 	}
 	
-	private void loadUnitsFromAddress(FileHandler handler, long unitAddress) {
+	private void loadUnitsFromAddress(RomImage handler, long unitAddress) {
 		if (unitAddress >= 0x1000000) { return; }
 		DebugPrinter.log(DebugPrinter.Key.CHAPTER_LOADER, "Loading units from 0x" + Long.toHexString(unitAddress));
 		long currentOffset = unitAddress;
@@ -481,7 +481,7 @@ public class FE8Chapter implements GBAFEChapterData {
 		}
 	}
 	
-	private void loadRewards(FileHandler handler) {
+	private void loadRewards(RomImage handler) {
 		byte[] locationCommand;
 		long currentAddress = locationBasedEventsOffset;
 		locationCommand = handler.readBytesAtOffset(currentAddress, 12); // These events are only 12 bytes long.
@@ -513,11 +513,11 @@ public class FE8Chapter implements GBAFEChapterData {
 		}
 	}
 	
-	private void loadRewardsFromEventBlob(FileHandler handler, long eventOffset) {
+	private void loadRewardsFromEventBlob(RomImage handler, long eventOffset) {
 		loadRewardsFromEventBlob(handler, eventOffset, 0);
 	}
 	
-	private void loadRewardsFromEventBlob(FileHandler handler, long eventOffset, long lastSlot1Value) {
+	private void loadRewardsFromEventBlob(RomImage handler, long eventOffset, long lastSlot1Value) {
 		DebugPrinter.log(DebugPrinter.Key.CHAPTER_LOADER, "Searching for rewards beginning at 0x" + Long.toHexString(eventOffset));
 		byte[] commandWord;
 		long currentAddress = eventOffset;
@@ -12,7 +12,7 @@ import util.Diff;
 import util.DiffCompiler;
 import util.FileReadHelper;
 import util.WhyDoesJavaNotHaveThese;
-import io.FileHandler;
+import io.RomImage;
 
 // FE8 uses two auxiliary tables to map palettes based on class.
 // The first tells us which classes a character can be, and the second
@@ -43,7 +43,7 @@ public class FE8PaletteMapper {
 		
 		Boolean wasModified;
 		
-		private MapEntry(FileHandler handler, long offset) {
+		private MapEntry(RomImage handler, long offset) {
 			originalOffset = offset;
 			originalData = handler.readBytesAtOffset(offset, FE8Data.BytesPerPaletteTableEntry);
 			data = originalData.clone();
@@ -131,7 +131,7 @@ public class FE8PaletteMapper {
 	}
 	
 	private class PaletteMapEntry extends MapEntry {
-		private PaletteMapEntry(FileHandler handler, long offset) { super(handler, offset); }
+		private PaletteMapEntry(RomImage handler, long offset) { super(handler, offset); }
 		
 		private int getTraineePaletteID() { return getByte0(); }
 		private void setTraineePaletteID(int paletteID) { setByte0(paletteID); }
@@ -169,7 +169,7 @@ public class FE8PaletteMapper {
 			}
 		}
 		
-		private ClassMapEntry(FileHandler handler, long offset) { super(handler, offset); }
+		private ClassMapEntry(RomImage handler, long offset) { super(handler, offset); }
 		
 		private int getTraineeClassID() { return getByte0(); }
 		private void setTraineeClassID(int newClassID) { setByte0(newClassID); }
@@ -207,7 +207,7 @@ public class FE8PaletteMapper {
 	
 	private FE8PromotionManager promotionManager;
 	
-	public FE8PaletteMapper(FileHandler handler, FE8PromotionManager promotionManager, List<Integer> emptyIDs) {
+	public FE8PaletteMapper(RomImage handler, FE8PromotionManager promotionManager, List<Integer> emptyIDs) {
 		paletteClassMap = new HashMap<FE8Data.Character, ClassMapEntry>();
 		paletteIndexMap = new HashMap<FE8Data.Character, PaletteMapEntry>();
 		
@@ -4,7 +4,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import fedata.general.FEModifiableData;
-import io.FileHandler;
+import io.RomImage;
 import util.Diff;
 import util.DiffCompiler;
 import util.FileReadHelper;
@@ -20,7 +20,7 @@ public class FE8PromotionManager {
 		Boolean wasModified = false;
 		Boolean hasChanges = false;
 		
-		private PromotionBranch(FileHandler handler, long offset) {
+		private PromotionBranch(RomImage handler, long offset) {
 			originalData = handler.readBytesAtOffset(offset, FE8Data.BytesPerPromotionBranchEntry);
 			data = originalData.clone();
 			
@@ -78,7 +78,7 @@ public class FE8PromotionManager {
 	
 	private Map<FE8Data.CharacterClass, PromotionBranch> promotionBranches;
 
-	public FE8PromotionManager(FileHandler handler) {
+	public FE8PromotionManager(RomImage handler) {
 		promotionBranches = new HashMap<FE8Data.CharacterClass, PromotionBranch>();
 		long address = FileReadHelper.readAddress(handler, FE8Data.PromotionBranchTablePointer);
 		for (FE8Data.CharacterClass currentClass : FE8Data.CharacterClass.values()) { // These are conveniently labeled in order of class ID.
@@ -10,7 +10,7 @@ import java.util.Set;
 
 import fedata.gba.GBAFECharacterData;
 import fedata.general.FEModifiableData;
-import io.FileHandler;
+import io.RomImage;
 import random.gba.loader.CharacterDataLoader;
 import util.DebugPrinter;
 import util.Diff;
@@ -57,7 +57,7 @@ public class FE8SummonerModule {
 		Boolean wasModified = false;
 		Boolean hasChanges = false;
 		
-		private SummonerEntry(FileHandler handler, long offset) {
+		private SummonerEntry(RomImage handler, long offset) {
 			originalData = handler.readBytesAtOffset(offset, FE8Data.BytesPerSummonerEntry);
 			data = originalData.clone();
 			originalOffset = offset;
@@ -130,7 +130,7 @@ public class FE8SummonerModule {
 	List<SummonerEntry> retiredSummoners;
 	int initialNumberOfEntries;
 	
-	public FE8SummonerModule(FileHandler handler) {
+	public FE8SummonerModule(RomImage handler) {
 		entriesByCharacterID = new HashMap<Integer, SummonerEntry>();
 		long pointerAddress = FE8Data.SummonerTablePointer;
 		long tableAddress = FileReadHelper.readAddress(handler, pointerAddress);
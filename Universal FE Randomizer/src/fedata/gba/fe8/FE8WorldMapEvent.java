@@ -6,7 +6,7 @@ import java.util.List;
 import fedata.gba.GBAFEWorldMapData;
 import fedata.gba.GBAFEWorldMapPortraitData;
 import fedata.gba.GBAFEWorldMapSpriteData;
-import io.FileHandler;
+import io.RomImage;
 import util.FileReadHelper;
 import util.WhyDoesJavaNotHaveThese;
 
@@ -170,7 +170,7 @@ public class FE8WorldMapEvent implements GBAFEWorldMapData {
 	private List<FE8WorldMapPortrait> portraitList = new ArrayList<FE8WorldMapPortrait>();
 	private List<FE8WorldMapSprite> spriteList = new ArrayList<FE8WorldMapSprite>();
 	
-	public FE8WorldMapEvent(FileHandler handler, long offset) {
+	public FE8WorldMapEvent(RomImage handler, long offset) {
 		// We need one jump.
 		long pointerTableOffset = FileReadHelper.readAddress(handler, offset);
 		
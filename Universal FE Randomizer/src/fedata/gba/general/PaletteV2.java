@@ -6,7 +6,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 
-import io.FileHandler;
+import io.RomImage;
 import util.DebugPrinter;
 import util.Diff;
 import util.DiffCompiler;
@@ -79,15 +79,20 @@ public class PaletteV2 {
 	
 	private int identifier;
 	
-	public PaletteV2(FileHandler handler, PaletteInfo info) {
-		decompressedData = LZ77.decompress(handler, info.getOffset());
+	// The last compression result, and the data it was compressed from. Palettes tend to be compressed several times without changing in between.
+	private byte[] lastCompressedSource;
+	private byte[] lastCompressedData;
+	
+	public PaletteV2(RomImage handler, PaletteInfo info) {
+		LZ77.DecompressionResult decompressed = LZ77.decompressWithLength(handler, info.getOffset());
+		decompressedData = decompressed.data;
 		colorArray = new ColorSet[16];
 		for (int i = 0; i < 16; i++) {
 			colorArray[i] = new ColorSet(decompressedData, i);
 		}
 		this.info = info;
 		destinationOffset = info.getOffset();
-		originalCompressedLength = LZ77.compressedLength(handler, info.getOffset());
+		originalCompressedLength = decompressed.compressedLength;
 		identifier = info.paletteID;
 	}
 	
@@ -112,7 +117,12 @@ public class PaletteV2 {
 	}
 	
 	public byte[] getCompressedData() {
-		return LZ77.compress(decompressedData);
+		if (lastCompressedSource == null || !Arrays.equals(lastCompressedSource, decompressedData)) {
+			lastCompressedSource = Arrays.copyOf(decompressedData, decompressedData.length);
+			lastCompressedData = LZ77.compress(decompressedData);
+		}
+		
+		return Arrays.copyOf(lastCompressedData, lastCompressedData.length);
 	}
 	
 	public long getDestinationOffset() {
@@ -225,7 +235,7 @@ public class PaletteV2 {
 	public void forceCommit(DiffCompiler compiler) {
 		applyColorsToData();
 		
-		byte[] compressed = LZ77.compress(decompressedData);
+		byte[] compressed = getCompressedData();
 		
 		compiler.addDiff(new Diff(getDestinationOffset(), compressed.length, compressed, null));
 		
@@ -240,7 +250,7 @@ public class PaletteV2 {
 		
 		applyColorsToData();
 		
-		byte[] compressed = LZ77.compress(decompressedData);
+		byte[] compressed = getCompressedData();
 		
 		compiler.addDiff(new Diff(getDestinationOffset(), compressed.length, compressed, null));
 		
@@ -0,0 +1,273 @@
+package io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+import util.DiffCompiler;
+
+// Everything a RomImage needs, on top of a ByteBuffer. Subclasses only need to provide the buffer (and the array behind it, if there is one).
+public abstract class BufferedRomImage implements RomImage {
+	
+	protected String name;
+	
+	protected ByteBuffer romBuffer; // Always set while the image is open. Only absolute reads are used on it.
+	protected byte[] romBytes; // Only set if the buffer is backed by an array, which allows for faster copies.
+	
+	protected long crc32;
+	protected long fileLength;
+	
+	private DiffCompiler appliedDiffs;
+	
+	private static final int HeapWriteChunkSize = 256 * 1024;
+	
+	// Each thread gets its own sequential read offset, so that several loaders can read from the same image at once.
+	private static class ReadCursor {
+		long offset = 0;
+	}
+	private final ThreadLocal<ReadCursor> readCursor = new ThreadLocal<ReadCursor>() {
+		@Override
+		protected ReadCursor initialValue() {
+			return new ReadCursor();
+		}
+	};
+	
+	protected BufferedRomImage(String name) {
+		super();
+		this.name = name;
+	}
+	
+	protected long computeCRC32() {
+		CRC32 checksum = new CRC32();
+		if (romBytes != null) {
+			checksum.update(romBytes, 0, (int)fileLength);
+		} else {
+			checksum.update(romBuffer.duplicate());
+		}
+		return checksum.getValue();
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public void close() {
+		romBuffer = null;
+		romBytes = null;
+	}
+	
+	public void setAppliedDiffs(DiffCompiler diffs) {
+		appliedDiffs = diffs;
+	}
+	
+	public DiffCompiler getAppliedDiffs() {
+		return appliedDiffs;
+	}
+	
+	public void clearAppliedDiffs() {
+		appliedDiffs = null;
+	}
+	
+	public long getNextReadOffset() {
+		return readCursor.get().offset;
+	}
+	
+	public void setNextReadOffset(long newOffset) {
+		if (romBuffer != null) {
+			readCursor.get().offset = newOffset;
+		}
+	}
+	
+	// Absolute accessors. These do not allocate and do not touch the sequential read offset.
+	// Applied diffs are respected, the same as readBytesAtOffset.
+	
+	public byte getByte(long offset) {
+		if (romBuffer == null || offset < 0 || offset >= fileLength) { return 0; }
+		byte value = romBuffer.get((int)offset);
+		if (appliedDiffs != null) {
+			return appliedDiffs.byteWithDiffs(value, offset);
+		}
+		return value;
+	}
+	
+	public int getUnsignedByte(long offset) {
+		return getByte(offset) & 0xFF;
+	}
+	
+	// Little endian values. Anything past the end of the file reads as 0.
+	
+	public int getU16(long offset) {
+		if (romBytes != null && appliedDiffs == null && offset >= 0 && offset + 2 <= fileLength) {
+			int i = (int)offset;
+			return (romBytes[i] & 0xFF) | ((romBytes[i + 1] & 0xFF) << 8);
+		}
+		return getUnsignedByte(offset) | (getUnsignedByte(offset + 1) << 8);
+	}
+	
+	public int getS16(long offset) {
+		return (short)getU16(offset);
+	}
+	
+	public long getU32(long offset) {
+		if (romBytes != null && appliedDiffs == null && offset >= 0 && offset + 4 <= fileLength) {
+			int i = (int)offset;
+			return ((romBytes[i] & 0xFF) | ((romBytes[i + 1] & 0xFF) << 8) | ((romBytes[i + 2] & 0xFF) << 16) | ((long)(romBytes[i + 3] & 0xFF) << 24));
+		}
+		return (getUnsignedByte(offset) | (getUnsignedByte(offset + 1) << 8) | (getUnsignedByte(offset + 2) << 16) | ((long)getUnsignedByte(offset + 3) << 24));
+	}
+	
+	// Reads a pointer into the ROM (i.e. 0x08XXXXXX) and returns the file offset it points to, or -1 if it's not a valid pointer.
+	public long getGBAPointer(long offset) {
+		long address = getU32(offset);
+		if (address <= 0x8000000) { return -1; }
+		address -= 0x8000000;
+		return address >= 0x1000 && address <= 0x1FFFFFF ? address : -1;
+	}
+	
+	// Copies up to length bytes starting at offset into destination. Returns the number of bytes actually copied.
+	public int getBytes(long offset, byte[] destination, int destinationOffset, int length) {
+		if (romBuffer == null || offset < 0 || offset >= fileLength) { return 0; }
+		length = (int)Math.min(length, fileLength - offset);
+		copyRawBytes(offset, destination, destinationOffset, length);
+		if (appliedDiffs != null) {
+			appliedDiffs.applyDiffsToByteArray(destination, destinationOffset, length, offset);
+		}
+		return length;
+	}
+	
+	public int getRawBytes(long offset, byte[] destination, int destinationOffset, int length) {
+		if (romBuffer == null || offset < 0 || offset >= fileLength) { return 0; }
+		length = (int)Math.min(length, fileLength - offset);
+		copyRawBytes(offset, destination, destinationOffset, length);
+		return length;
+	}
+	
+	protected void copyRawBytes(long offset, byte[] destination, int destinationOffset, int length) {
+		if (romBytes != null) {
+			System.arraycopy(romBytes, (int)offset, destination, destinationOffset, length);
+		} else {
+			int start = (int)offset;
+			for (int i = 0; i < length; i++) {
+				destination[destinationOffset + i] = romBuffer.get(start + i);
+			}
+		}
+	}
+	
+	// Writes length bytes starting at offset straight from the backing buffer to the channel.
+	// Applied diffs are NOT included. Returns the number of bytes written, which is less than length if the file is shorter.
+	public long writeBytesToChannel(long offset, long length, WritableByteChannel channel) throws IOException {
+		if (romBuffer == null || offset < 0 || offset >= fileLength) { return 0; }
+		length = Math.min(length, fileLength - offset);
+		
+		// Writing a heap buffer makes the JDK copy it into a temporary direct buffer of the same size first, so those go out in chunks.
+		// Mapped buffers are already direct and can be written in one go.
+		int chunkSize = romBuffer.isDirect() ? Integer.MAX_VALUE : HeapWriteChunkSize;
+		ByteBuffer slice = romBuffer.duplicate();
+		long end = offset + length;
+		long position = offset;
+		while (position < end) {
+			long chunkEnd = Math.min(end, position + chunkSize);
+			slice.limit((int)chunkEnd);
+			slice.position((int)position);
+			while (slice.hasRemaining()) {
+				channel.write(slice);
+			}
+			position = chunkEnd;
+		}
+		
+		return length;
+	}
+	
+	public byte continueReadingNextByte() {
+		ReadCursor cursor = readCursor.get();
+		if (romBuffer == null) { return 0; }
+		if (cursor.offset < 0 || cursor.offset >= fileLength) {
+			System.err.println("Failed to read next byte starting from offset " + Long.toHexString(cursor.offset) + ".");
+			return 0;
+		}
+		
+		return romBuffer.get((int)cursor.offset++);
+	}
+	
+	public byte[] continueReadingBytes(int numBytes) {
+		ReadCursor cursor = readCursor.get();
+		if (romBuffer == null) { return new byte[] {}; }
+		
+		long remainingBytes = Math.max(0, fileLength - cursor.offset);
+		if (numBytes > remainingBytes) {
+			numBytes = (int)remainingBytes;
+		}
+		
+		byte[] outputBytes = new byte[numBytes];
+		copyRawBytes(cursor.offset, outputBytes, 0, numBytes);
+		cursor.offset += numBytes;
+		
+		if (appliedDiffs != null) {
+			return appliedDiffs.byteArrayWithDiffs(outputBytes, cursor.offset - numBytes);
+		}
+		
+		return outputBytes;
+	}
+	
+	public byte[] continueReadingBytesUpToNextTerminator(long maxOffset) {
+		ReadCursor cursor = readCursor.get();
+		if (romBuffer == null) { return new byte[] {}; }
+		
+		// Like the other sequential reads, the terminator (inclusive) is returned and the read offset is left just after it.
+		long startOffset = cursor.offset;
+		long endOffset = Math.min(maxOffset - 1, fileLength);
+		if (endOffset <= startOffset) { return null; }
+		
+		byte[] batch = new byte[(int)Math.min(1024, endOffset - startOffset)];
+		long currentOffset = startOffset;
+		while (currentOffset < endOffset) {
+			int batchLength = getBytes(currentOffset, batch, 0, (int)Math.min(batch.length, endOffset - currentOffset));
+			if (batchLength <= 0) { break; }
+			for (int i = 0; i < batchLength; i++) {
+				if (batch[i] == 0) {
+					cursor.offset = currentOffset + i + 1;
+					return readRawRangeWithDiffs(startOffset, (int)(cursor.offset - startOffset));
+				}
+			}
+			currentOffset += batchLength;
+		}
+		
+		cursor.offset = currentOffset;
+		return readRawRangeWithDiffs(startOffset, (int)(currentOffset - startOffset));
+	}
+	
+	private byte[] readRawRangeWithDiffs(long offset, int length) {
+		byte[] result = new byte[length];
+		getBytes(offset, result, 0, length);
+		return result;
+	}
+	
+	public byte[] readBytesAtOffset(long offset, int numBytes) {
+		ReadCursor cursor = readCursor.get();
+		if (romBuffer == null) { return new byte[] {}; }
+		
+		long remainingBytes = Math.max(0, fileLength - offset);
+		if (numBytes > remainingBytes) {
+			numBytes = (int)remainingBytes;
+		}
+		byte[] outputBytes = new byte[numBytes];
+		
+		copyRawBytes(offset, outputBytes, 0, numBytes);
+		cursor.offset = offset + numBytes;
+		
+		if (appliedDiffs != null) {
+			return appliedDiffs.byteArrayWithDiffs(outputBytes, offset);
+		}
+		
+		return outputBytes;
+	}
+	
+	public long getCRC32() {
+		return crc32;
+	}
+	
+	public long getFileLength() {
+		return fileLength;
+	}
+}
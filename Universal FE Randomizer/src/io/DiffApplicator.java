@@ -1,14 +1,14 @@
 package io;
 
-import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 
 import util.DebugPrinter;
 import util.Diff;
@@ -17,70 +17,87 @@ import util.WhyDoesJavaNotHaveThese;
 
 public class DiffApplicator {
 	
-	public static ArrayList<Diff> applyDiffs(DiffCompiler compiler, FileHandler handler, String outputPath) throws FileNotFoundException {
+	// Size of the buffer used to pad the output with 0s past the end of the source.
+	private static final int ZeroFillChunkSize = 1024 * 1024;
+	
+	public static ArrayList<Diff> applyDiffs(DiffCompiler compiler, RomImage handler, String outputPath) throws FileNotFoundException {
 		ArrayList<Diff> failedDiffs = new ArrayList<>();
 		
-		long currentOffset = 0;
-		FileOutputStream outputStream = new FileOutputStream(outputPath);
-		
-		// Copy the entire file first.
-		long lengthDiff = handler.getFileLength() - currentOffset;
-		while (lengthDiff > 0) {
-			int bytesToRead = (int) Math.min(1024, lengthDiff);
-			byte[] batch = handler.readBytesAtOffset(currentOffset, bytesToRead);
-			try {
-				outputStream.write(batch);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			lengthDiff -= batch.length;
-			currentOffset += batch.length;
+		for (String conflict : compiler.compact()) {
+			DebugPrinter.log(DebugPrinter.Key.DIFF, "Overlapping diffs: " + conflict);
 		}
 		
-		// Now close the stream and re-open a random access writeable file.
-		try {
-			outputStream.flush();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
-		try {
-			outputStream.close();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
+		// Sort by address, but remember the order they were added in. Overlapping diffs are applied in that order.
+		List<Diff> diffs = compiler.diffArray;
+		Integer[] order = new Integer[diffs.size()];
+		for (int i = 0; i < order.length; i++) { order[i] = i; }
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer arg0, Integer arg1) {
+				int result = Long.compare(diffs.get(arg0).address, diffs.get(arg1).address);
+				return result != 0 ? result : Integer.compare(arg0, arg1);
+			}
+		});
 		
-		RandomAccessFile resultFile = new RandomAccessFile(outputPath, "rw");
+		FileOutputStream outputStream = new FileOutputStream(outputPath);
+		FileChannel outputChannel = outputStream.getChannel();
 		
-		// Apply all the diffs.
-		for (int i = 0; i < compiler.diffArray.size(); i++) {
-			Diff currentDiff = compiler.diffArray.get(i);
-			long nextAddress = currentDiff.address;
-			int length = currentDiff.length;
-			byte[] oldValue = currentDiff.requiredOldValues;
-			byte[] newValue = currentDiff.changes;
-			
-			DebugPrinter.log(DebugPrinter.Key.DIFF, "Address: 0x" + Long.toHexString(nextAddress).toUpperCase() + " - Length: " + length + ", Old Value: " + 
-					WhyDoesJavaNotHaveThese.displayStringForBytes(oldValue) + ", New Value: " + WhyDoesJavaNotHaveThese.displayStringForBytes(newValue));
-			
-			try {
-				resultFile.seek(nextAddress);
-				if (oldValue != null) {
-					byte[] existingValue = new byte[length];
-					resultFile.read(existingValue);
-					if (!WhyDoesJavaNotHaveThese.byteArraysAreEqual(existingValue, oldValue)) {
+		try {
+			long currentOffset = 0;
+			int i = 0;
+			while (i < order.length) {
+				// Group together every diff that overlaps the first one (directly or through another diff).
+				long clusterStart = diffs.get(order[i]).address;
+				long clusterEnd = clusterStart + extentOfDiff(diffs.get(order[i]));
+				int clusterEndIndex = i + 1;
+				while (clusterEndIndex < order.length && diffs.get(order[clusterEndIndex]).address < clusterEnd) {
+					clusterEnd = Math.max(clusterEnd, diffs.get(order[clusterEndIndex]).address + extentOfDiff(diffs.get(order[clusterEndIndex])));
+					clusterEndIndex++;
+				}
+				
+				// Copy everything up to this cluster straight from the source.
+				copySourceBytes(handler, currentOffset, clusterStart - currentOffset, outputChannel);
+				
+				// Raw, like the gaps, so that nothing from an overlay left on the handler ends up in the output.
+				byte[] cluster = new byte[(int)(clusterEnd - clusterStart)];
+				handler.getRawBytes(clusterStart, cluster, 0, cluster.length);
+				
+				Integer[] clusterOrder = Arrays.copyOfRange(order, i, clusterEndIndex);
+				Arrays.sort(clusterOrder);
+				for (int index : clusterOrder) {
+					Diff currentDiff = diffs.get(index);
+					int offset = (int)(currentDiff.address - clusterStart);
+					byte[] oldValue = currentDiff.requiredOldValues;
+					byte[] newValue = currentDiff.changes;
+					
+					DebugPrinter.log(DebugPrinter.Key.DIFF, "Address: 0x" + Long.toHexString(currentDiff.address).toUpperCase() + " - Length: " + currentDiff.length + ", Old Value: " + 
+							WhyDoesJavaNotHaveThese.displayStringForBytes(oldValue) + ", New Value: " + WhyDoesJavaNotHaveThese.displayStringForBytes(newValue));
+					
+					// The cluster holds the source bytes plus any earlier diffs, which is what's on disk at this point.
+					if (oldValue != null && !bytesMatch(cluster, offset, currentDiff.length, oldValue)) {
 						failedDiffs.add(currentDiff);
 						continue;
 					}
+					System.arraycopy(newValue, 0, cluster, offset, newValue.length);
 				}
-				resultFile.seek(nextAddress);
-				resultFile.write(newValue);
-			} catch (IOException e) {
-				e.printStackTrace();
+				
+				ByteBuffer clusterBuffer = ByteBuffer.wrap(cluster);
+				while (clusterBuffer.hasRemaining()) {
+					outputChannel.write(clusterBuffer);
+				}
+				
+				currentOffset = clusterEnd;
+				i = clusterEndIndex;
 			}
+			
+			// Copy whatever is left after the last diff.
+			copySourceBytes(handler, currentOffset, handler.getFileLength() - currentOffset, outputChannel);
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 		
 		try {
-			resultFile.close();
+			outputStream.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -88,63 +105,48 @@ public class DiffApplicator {
 		return failedDiffs;
 	}
 	
-	public static Boolean applyDiff(String diffName, FileHandler handler, String outputPath) {
-		try {
-			long currentOffset = 0;
-			FileOutputStream outputStream = new FileOutputStream(outputPath);
-			
-			InputStream stream = DiffApplicator.class.getClassLoader().getResourceAsStream(diffName + ".diff");;
-			BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(stream));
-			String currentLine = bufferedReader.readLine();
-			while(currentLine != null) {
-				Scanner scanner = new Scanner(currentLine);
-				scanner.useDelimiter("[\\s\\W]+");
-				long nextAddress = scanner.nextLong(16);
-				int existingValue = scanner.nextInt(16);
-				int newValue = scanner.nextInt(16);
-				
-				
-				
-				long lengthDiff = nextAddress - currentOffset;
-				while (lengthDiff > 0) {
-					int bytesToRead = (int) Math.min(1024, lengthDiff);
-					byte[] batch = handler.readBytesAtOffset(currentOffset, bytesToRead);
-					outputStream.write(batch);
-					lengthDiff -= batch.length;
-					currentOffset += batch.length;
-				}
-				
-				byte[] byteToChange = handler.readBytesAtOffset(nextAddress, 1);
-				if (byteToChange.length == 1) {
-					if ((byteToChange[0] & 0xFF) == existingValue) {
-						outputStream.write(newValue & 0xFF);
-					} else {
-						System.err.println("Value Mismatch detected at address 0x" + Long.toHexString(nextAddress).toUpperCase() + ". Expected: " + 
-								Integer.toHexString(existingValue).toUpperCase() + ", but found " + Integer.toHexString(byteToChange[0]));	
-					}
-				} else {
-					System.err.println("No Value Found at address 0x" + Long.toHexString(nextAddress).toUpperCase());
+	private static int extentOfDiff(Diff diff) {
+		return Math.max(diff.length, diff.changes.length);
+	}
+	
+	private static boolean bytesMatch(byte[] buffer, int offset, int length, byte[] expected) {
+		if (expected.length != length) { return false; }
+		for (int i = 0; i < length; i++) {
+			if (buffer[offset + i] != expected[i]) { return false; }
+		}
+		
+		return true;
+	}
+	
+	// Anything past the end of the source is filled with 0s.
+	private static void copySourceBytes(RomImage handler, long offset, long length, FileChannel outputChannel) throws IOException {
+		if (length <= 0) { return; }
+		long copied = handler.writeBytesToChannel(offset, length, outputChannel);
+		long remaining = length - copied;
+		if (remaining > 0) {
+			ByteBuffer zeros = ByteBuffer.allocateDirect((int)Math.min(ZeroFillChunkSize, remaining));
+			while (remaining > 0) {
+				zeros.clear();
+				zeros.limit((int)Math.min(zeros.capacity(), remaining));
+				remaining -= zeros.remaining();
+				while (zeros.hasRemaining()) {
+					outputChannel.write(zeros);
 				}
-				
-				currentOffset += 1;
-				
-				scanner.close();
-;				currentLine = bufferedReader.readLine();
 			}
+		}
+	}
+	
+	public static Boolean applyDiff(String diffName, RomImage handler, String outputPath) {
+		try {
+			DiffCompiler compiler = new DiffCompiler();
+			compiler.addDiffsFromFile(diffName);
 			
-			long lengthDiff = handler.getFileLength() - currentOffset;
-			while (lengthDiff > 0) {
-				int bytesToRead = (int) Math.min(1024, lengthDiff);
-				byte[] batch = handler.readBytesAtOffset(currentOffset, bytesToRead);
-				outputStream.write(batch);
-				lengthDiff -= batch.length;
-				currentOffset += batch.length;
+			List<Diff> failedDiffs = applyDiffs(compiler, handler, outputPath);
+			for (Diff failedDiff : failedDiffs) {
+				System.err.println("Value Mismatch detected at address 0x" + Long.toHexString(failedDiff.address).toUpperCase() + ". Expected: " + 
+						WhyDoesJavaNotHaveThese.displayStringForBytes(failedDiff.requiredOldValues) + ", but found " + WhyDoesJavaNotHaveThese.displayStringForBytes(handler.readBytesAtOffset(failedDiff.address, failedDiff.length)));
 			}
 			
-			bufferedReader.close();
-			outputStream.flush();
-			outputStream.close();
-			
 			return true;
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
@@ -0,0 +1,178 @@
+package io;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.zip.CRC32;
+
+import util.DebugPrinter;
+import util.Diff;
+import util.WhyDoesJavaNotHaveThese;
+
+// Reads and writes the two formats .diff resources can come in.
+//
+// Text (.diff): One byte per line, as "ADDRESS: OLD NEW" in hex (i.e. "00C9EA2C: DC B4").
+//
+// Binary (.bdiff): Big endian, one entry per byte (same as the text).
+//  4 bytes - "UFED"
+//  1 byte  - Format version (currently 2)
+//  4 bytes - Number of entries
+//  For each entry:
+//   4 bytes - Address
+//   1 byte  - Old value
+//   1 byte  - New value
+//
+// Version 1 grouped consecutive bytes into runs, which made a single mismatched byte skip the whole run. Those files are thrown out and parsed again.
+//
+// Binary files aren't bundled. The first time a .diff resource is loaded, it's parsed and cached as a .bdiff named after the
+// CRC32 of the text, so later runs only have to checksum it. Editing a .diff changes its checksum, so a stale entry is never used.
+public class DiffResourceConverter {
+	
+	private static final byte[] BinaryMagic = new byte[] {'U', 'F', 'E', 'D'};
+	private static final int BinaryVersion = 2;
+	
+	private static final String CacheDirectoryName = ".UniversalFERandomizer" + File.separator + "DiffCache";
+	
+	public static File cacheDirectory() {
+		return new File(System.getProperty("user.home"), CacheDirectoryName);
+	}
+	
+	// Loads diffName.diff from the bundled resources, using the cached binary version if there is one.
+	public static List<Diff> loadDiffResource(String diffName) throws IOException {
+		InputStream stream = DiffResourceConverter.class.getClassLoader().getResourceAsStream(diffName + ".diff");
+		if (stream == null) {
+			throw new IOException("Missing diff resource: " + diffName + ".diff");
+		}
+		byte[] text = WhyDoesJavaNotHaveThese.readAllBytes(stream);
+		stream.close();
+		
+		CRC32 checksum = new CRC32();
+		checksum.update(text);
+		File cacheFile = new File(cacheDirectory(), String.format("%s-%08X.bdiff", new File(diffName).getName(), checksum.getValue()));
+		
+		if (cacheFile.isFile()) {
+			try {
+				FileInputStream cacheStream = new FileInputStream(cacheFile);
+				try {
+					return readBinaryDiffs(cacheStream);
+				} finally {
+					cacheStream.close();
+				}
+			} catch (IOException | BufferUnderflowException e) {
+				System.err.println("Cached diff is invalid. Removing " + cacheFile.getAbsolutePath());
+				cacheFile.delete();
+			}
+		}
+		
+		List<Diff> diffs = readTextDiffs(new ByteArrayInputStream(text));
+		storeCachedDiffs(diffs, cacheFile);
+		return diffs;
+	}
+	
+	// Failing to write to the cache is not an error. The next run will just have to parse the text again.
+	private static void storeCachedDiffs(List<Diff> diffs, File cacheFile) {
+		File directory = cacheFile.getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			System.err.println("Unable to create diff cache directory at " + directory.getAbsolutePath());
+			return;
+		}
+		
+		File tempFile = null;
+		try {
+			// Write it somewhere else first, so that an interrupted write never looks like a valid entry.
+			tempFile = File.createTempFile("diff", ".tmp", directory);
+			FileOutputStream outputStream = new FileOutputStream(tempFile);
+			try {
+				writeBinaryDiffs(diffs, outputStream);
+			} finally {
+				outputStream.close();
+			}
+			try {
+				Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			DebugPrinter.log(DebugPrinter.Key.DIFF, "Cached " + diffs.size() + " diffs to " + cacheFile.getAbsolutePath());
+		} catch (IOException e) {
+			System.err.println("Unable to cache diffs to " + cacheFile.getAbsolutePath());
+			e.printStackTrace();
+			if (tempFile != null) { tempFile.delete(); }
+		}
+	}
+	
+	// Every line has an old value to check, so each one is kept as its own diff. That way a byte that doesn't match only skips that byte.
+	public static List<Diff> readTextDiffs(InputStream stream) throws IOException {
+		List<Diff> diffs = new ArrayList<Diff>();
+		BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(stream));
+		
+		String currentLine = bufferedReader.readLine();
+		while(currentLine != null) {
+			Scanner scanner = new Scanner(currentLine);
+			scanner.useDelimiter("[\\s\\W]+");
+			long nextAddress = scanner.nextLong(16);
+			int existingValue = scanner.nextInt(16);
+			int newValue = scanner.nextInt(16);
+			
+			diffs.add(new Diff(nextAddress, 1, new byte[] {(byte)(newValue & 0xFF)}, new byte[] {(byte)(existingValue & 0xFF)}));
+			scanner.close();
+			currentLine = bufferedReader.readLine();
+		}
+		
+		return diffs;
+	}
+	
+	public static void writeBinaryDiffs(List<Diff> diffs, OutputStream stream) throws IOException {
+		DataOutputStream outputStream = new DataOutputStream(stream);
+		outputStream.write(BinaryMagic);
+		outputStream.writeByte(BinaryVersion);
+		outputStream.writeInt(diffs.size());
+		for (Diff diff : diffs) {
+			if (diff.requiredOldValues == null || diff.requiredOldValues.length != 1 || diff.changes.length != 1 || diff.length != 1) {
+				throw new IOException("Diff at 0x" + Long.toHexString(diff.address).toUpperCase() + " cannot be stored in the binary format.");
+			}
+			outputStream.writeInt((int)diff.address);
+			outputStream.writeByte(diff.requiredOldValues[0]);
+			outputStream.writeByte(diff.changes[0]);
+		}
+		outputStream.flush();
+	}
+	
+	public static List<Diff> readBinaryDiffs(InputStream stream) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(WhyDoesJavaNotHaveThese.readAllBytes(stream));
+		
+		byte[] magic = new byte[BinaryMagic.length];
+		buffer.get(magic);
+		if (!WhyDoesJavaNotHaveThese.byteArraysAreEqual(magic, BinaryMagic)) {
+			throw new IOException("Not a binary diff file.");
+		}
+		int version = buffer.get() & 0xFF;
+		if (version != BinaryVersion) {
+			throw new IOException("Unsupported binary diff version: " + version);
+		}
+		
+		int entryCount = buffer.getInt();
+		List<Diff> diffs = new ArrayList<Diff>(entryCount);
+		for (int i = 0; i < entryCount; i++) {
+			long address = buffer.getInt() & 0xFFFFFFFFL;
+			byte oldValue = buffer.get();
+			byte newValue = buffer.get();
+			diffs.add(new Diff(address, 1, new byte[] {newValue}, new byte[] {oldValue}));
+		}
+		
+		return diffs;
+	}
+}
@@ -1,244 +1,82 @@
 package io;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.zip.CRC32;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import util.DiffCompiler;
-
-public class FileHandler {
-	public String pathToFile;
+// A ROM read from a file on disk.
+public class FileHandler extends BufferedRomImage {
+	
+	// HEAP reads the entire file into a single array up front.
+	// MAPPED maps the file read-only and lets the OS page it in as needed.
+	public enum BackingMode {
+		HEAP, MAPPED
+	}
+	
+	// Anything up to this size (which covers every supported ROM) is read into the heap by default.
+	private static final long MaxDefaultHeapLength = 64 * 1024 * 1024;
 	
-	private RandomAccessFile inputFile;
-	private long crc32;
-	private long fileLength;
+	public String pathToFile;
 	
-	private DiffCompiler appliedDiffs;
+	private BackingMode backingMode;
 	
-	private long nextReadOffset = 0;
+	private static final Map<String, Long> checksumCache = new ConcurrentHashMap<String, Long>();
 	
 	public FileHandler(File file) throws IOException {
-		super();
-		this.pathToFile = file.getAbsolutePath();
-		
-		inputFile = new RandomAccessFile(file, "r");
-		fileLength = inputFile.length();
-		
-		FileInputStream inputStream = new FileInputStream(pathToFile);
-		
-		CRC32 checksum = new CRC32();
-		long currentOffset = 0;
-		int numBytes = Math.min(1024, (int)(fileLength - currentOffset));
-		while (numBytes > 0) {
-			byte[] batch = new byte[numBytes];
-			if (inputStream.read(batch) == -1) { break; }
-			checksum.update(batch);
-			currentOffset += batch.length;
-			numBytes = Math.min(1024, (int)(fileLength - currentOffset));
-		}
-		
-		crc32 = checksum.getValue();
-		
-		inputStream.close();
+		this(file.getAbsolutePath());
 	}
 
 	public FileHandler(String pathToFile) throws IOException {
-		super();
-		this.pathToFile = pathToFile;
-		
-		inputFile = new RandomAccessFile(pathToFile, "r");
-		fileLength = inputFile.length();
-		
-		FileInputStream inputStream = new FileInputStream(pathToFile);
-		
-		CRC32 checksum = new CRC32();
-		long currentOffset = 0;
-		int numBytes = Math.min(1024, (int)(fileLength - currentOffset));
-		while (numBytes > 0) {
-			byte[] batch = new byte[numBytes];
-			if (inputStream.read(batch) == -1) { break; }
-			checksum.update(batch);
-			currentOffset += batch.length;
-			numBytes = Math.min(1024, (int)(fileLength - currentOffset));
-		}
-		
-		crc32 = checksum.getValue();
-		
-		inputStream.close();
+		this(pathToFile, new File(pathToFile).length() <= MaxDefaultHeapLength ? BackingMode.HEAP : BackingMode.MAPPED);
 	}
 	
-	public void close() {
-		try {
-			if (inputFile != null) { inputFile.close(); }
-		} catch (IOException e) {
-			
-		}
-		inputFile = null;
-	}
-	
-	public void setAppliedDiffs(DiffCompiler diffs) {
-		appliedDiffs = diffs;
-	}
-	
-	public void clearAppliedDiffs() {
-		appliedDiffs = null;
-	}
-	
-	public long getNextReadOffset() {
-		return nextReadOffset;
-	}
-	
-	public void setNextReadOffset(long newOffset) {
-		if (inputFile != null) {
-			try {
-				inputFile.seek(newOffset);
-				nextReadOffset = newOffset;
-			} catch (IOException e) {
-				System.err.println("Failed to seek to offset.");
-			}
-		}
-	}
-	
-	public byte continueReadingNextByte() {
-		if (inputFile == null) { return 0; }
-		byte[] outputBytes = new byte[1];
-		try {
-			inputFile.readFully(outputBytes);
-			nextReadOffset++;
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			System.err.println("Failed to read next byte starting from offset " + Long.toHexString(nextReadOffset) + ".");
-			return 0;
-		}
+	public FileHandler(String pathToFile, BackingMode mode) throws IOException {
+		super(pathToFile);
+		this.pathToFile = pathToFile;
+		this.backingMode = mode;
 		
-		return outputBytes[0];
-	}
-	
-	public byte[] continueReadingBytes(int numBytes) {
-		if (inputFile == null) { return new byte[] {}; }
+		RandomAccessFile inputFile = new RandomAccessFile(pathToFile, "r");
 		try {
-			long remainingBytes = fileLength - inputFile.getFilePointer();
-			if (numBytes > remainingBytes) {
-				numBytes = (int)remainingBytes;
+			fileLength = inputFile.length();
+			if (fileLength > Integer.MAX_VALUE) {
+				throw new IOException("File is too large to open: " + pathToFile);
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
-			System.err.println("Failed to get file pointer.");
-			return null;
-		}
-		
-		byte[] outputBytes = new byte[numBytes];
-		
-		try {
-			inputFile.readFully(outputBytes);
-			nextReadOffset += numBytes;
-			
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			System.err.println("Failed to read " + numBytes + " bytes starting from offset " + Long.toHexString(nextReadOffset) + ".");
-			return null;
-		}
-		
-		if (appliedDiffs != null) {
-			return appliedDiffs.byteArrayWithDiffs(outputBytes, nextReadOffset - numBytes);
-		}
 		
-		return outputBytes;
-	}
-	
-	public byte[] continueReadingBytesUpToNextTerminator(long maxOffset) {
-		if (inputFile == null) { return new byte[] {}; }
-		
-		byte[] result = null;
-		int zeroIndex = -1;
-		
-		do {
-			long initialReadOffset = nextReadOffset;
-			int numBytes = Math.min(1024, (int)(maxOffset - initialReadOffset - 1));
-			if (numBytes <= 0) {
+			switch (mode) {
+			case MAPPED:
+				romBuffer = inputFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+				break;
+			case HEAP:
+			default:
+				romBytes = new byte[(int)fileLength];
+				inputFile.readFully(romBytes);
+				romBuffer = ByteBuffer.wrap(romBytes);
 				break;
 			}
-			
-			byte[] batch = continueReadingBytes(numBytes);
-			int oldSize = result != null ? result.length : 0;
-			int deltaSize = 0;
-			for (int i = 0; i < batch.length; i++) {
-				deltaSize++;
-				if (batch[i] == 0) {
-					zeroIndex = i;
-					break;
-				}
-			}
-			int newSize = oldSize + deltaSize;
-			byte[] newResult = new byte[newSize];
-			for (int i = 0; i < oldSize; i++) {
-				newResult[i] = result[i];
-			}
-			for (int i = 0; i < deltaSize; i++) {
-				newResult[i + oldSize] = batch[i];
-			}
-			if (zeroIndex != -1) {
-				nextReadOffset = initialReadOffset + deltaSize;
-				try {
-					inputFile.seek(nextReadOffset);
-				} catch (IOException e) {
-					System.err.println("Unable to seek to specific offset.");
-					e.printStackTrace();
-				}
-			}
-			
-			result = newResult;
-		} while (zeroIndex == -1);
-		
-		return result;
-	}
-	
-	public byte[] readBytesAtOffset(long offset, int numBytes) {
-		if (inputFile == null) { return new byte[] {}; }
-		
-		long remainingBytes = fileLength - offset;
-		if (numBytes > remainingBytes) {
-			numBytes = (int)remainingBytes;
-		}
-		byte[] outputBytes = new byte[numBytes];
-		
-		try {
-			inputFile.seek(offset);
-			inputFile.readFully(outputBytes);
-			nextReadOffset = inputFile.getFilePointer();
-			
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			System.err.println("Failed to read " + numBytes + " bytes starting from offset " + Long.toHexString(offset) + ".");
-			return null;
-		}
-		
-		if (appliedDiffs != null) {
-			return appliedDiffs.byteArrayWithDiffs(outputBytes, offset);
+		} finally {
+			// The mapping (if any) stays valid after the channel is closed.
+			inputFile.close();
 		}
 		
-		return outputBytes;
-	}
-	
-	public long getCRC32() {
-		return crc32;
+		crc32 = checksumForBuffer(pathToFile, fileLength, new File(pathToFile).lastModified());
 	}
 	
-	public long getFileLength() {
-		return fileLength;
+	// Checksums are cached per file (by path, length, and modification time), so opening the same ROM again doesn't hash it again.
+	private long checksumForBuffer(String pathToFile, long fileLength, long lastModified) {
+		String cacheKey = new File(pathToFile).getAbsolutePath() + "|" + fileLength + "|" + lastModified;
+		Long cachedValue = checksumCache.get(cacheKey);
+		if (cachedValue != null) { return cachedValue; }
+		
+		long value = computeCRC32();
+		checksumCache.put(cacheKey, value);
+		return value;
 	}
-	
-	@Override
-	protected void finalize() throws Throwable {
-		try {
-			if (inputFile != null) { inputFile.close(); }
-		} finally {
-			super.finalize();
-		}
+			
+	public BackingMode getBackingMode() {
+		return backingMode;
 	}
 }
@@ -0,0 +1,17 @@
+package io;
+
+import java.nio.ByteBuffer;
+
+// A ROM that's already in memory (i.e. a freshly patched ROM). Nothing is read from disk.
+// The array is used as is, so it shouldn't be modified afterwards. name is only used for display purposes.
+public class HeapRomImage extends BufferedRomImage {
+	
+	public HeapRomImage(byte[] contents, String name) {
+		super(name);
+		
+		romBytes = contents;
+		romBuffer = ByteBuffer.wrap(romBytes);
+		fileLength = contents.length;
+		crc32 = computeCRC32();
+	}
+}
@@ -0,0 +1,19 @@
+package io;
+
+import java.nio.ByteBuffer;
+
+// A ROM in a buffer that isn't necessarily on the heap (i.e. a file that's been mapped elsewhere, or a direct buffer).
+// Everything from the buffer's position to its limit is the ROM. name is only used for display purposes.
+public class MappedRomImage extends BufferedRomImage {
+	
+	public MappedRomImage(ByteBuffer buffer, String name) {
+		super(name);
+		
+		romBuffer = buffer.slice();
+		fileLength = romBuffer.limit();
+		if (romBuffer.hasArray() && romBuffer.arrayOffset() == 0 && romBuffer.array().length == fileLength) {
+			romBytes = romBuffer.array(); // Copies can go straight from the array.
+		}
+		crc32 = computeCRC32();
+	}
+}
@@ -0,0 +1,76 @@
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import util.DebugPrinter;
+
+// Keeps patched ROMs on disk so the same patch doesn't have to be applied to the same ROM on every run.
+// Entries are named after the source ROM's CRC32 and the patch's CRC32, so a changed ROM or patch is just a different entry.
+public class PatchedROMCache {
+	
+	private static final String CacheDirectoryName = ".UniversalFERandomizer" + File.separator + "PatchCache";
+	
+	public static File cacheDirectory() {
+		return new File(System.getProperty("user.home"), CacheDirectoryName);
+	}
+	
+	private static File cacheFile(long sourceCRC, long patchCRC) {
+		return new File(cacheDirectory(), String.format("%08X-%08X.bin", sourceCRC, patchCRC));
+	}
+	
+	// Returns a handler to the cached result, or null if there isn't one.
+	// Entries that don't match the expected CRC32 (i.e. the one in the patch's footer) are thrown out.
+	public static FileHandler cachedPatchedROM(long sourceCRC, long patchCRC, long expectedCRC) {
+		File file = cacheFile(sourceCRC, patchCRC);
+		if (!file.isFile()) { return null; }
+		
+		try {
+			FileHandler handler = new FileHandler(file.getAbsolutePath());
+			if (handler.getCRC32() == expectedCRC) {
+				DebugPrinter.log(DebugPrinter.Key.UPS, "Using cached patched ROM: " + file.getAbsolutePath());
+				return handler;
+			}
+			
+			handler.close();
+			System.err.println("Cached patched ROM is invalid. Removing " + file.getAbsolutePath());
+		} catch (IOException e) {
+			System.err.println("Failed to read cached patched ROM at " + file.getAbsolutePath());
+			e.printStackTrace();
+		}
+		
+		if (!file.delete()) {
+			System.err.println("Failed to remove cached patched ROM at " + file.getAbsolutePath());
+		}
+		return null;
+	}
+	
+	// Failing to write to the cache is not an error. The next run will just have to patch again.
+	public static void storePatchedROM(long sourceCRC, long patchCRC, byte[] patchedROM) {
+		File directory = cacheDirectory();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			System.err.println("Unable to create patch cache directory at " + directory.getAbsolutePath());
+			return;
+		}
+		
+		File file = cacheFile(sourceCRC, patchCRC);
+		File tempFile = null;
+		try {
+			// Write it somewhere else first, so that an interrupted write never looks like a valid entry.
+			tempFile = File.createTempFile("patch", ".tmp", directory);
+			FileWriter.writeBinaryDataToFile(patchedROM, tempFile.getAbsolutePath());
+			try {
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			DebugPrinter.log(DebugPrinter.Key.UPS, "Cached patched ROM to " + file.getAbsolutePath());
+		} catch (IOException e) {
+			System.err.println("Unable to cache patched ROM to " + file.getAbsolutePath());
+			e.printStackTrace();
+			if (tempFile != null) { tempFile.delete(); }
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package io;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+import util.DiffCompiler;
+
+// Anything a ROM can be read from. Loaders only need this, so they can run on a file (FileHandler) just as well as on an image that's already in memory (HeapRomImage, MappedRomImage).
+// The get* methods are absolute and don't touch the sequential read offset. readBytesAtOffset and the continueReading* methods do.
+// Applied diffs are included in every read except writeBytesToChannel.
+public interface RomImage {
+	
+	public String getName();
+	
+	public long getFileLength();
+	public long getCRC32();
+	
+	public void setAppliedDiffs(DiffCompiler diffs);
+	public DiffCompiler getAppliedDiffs();
+	public void clearAppliedDiffs();
+	
+	// Anything past the end reads as 0.
+	public byte getByte(long offset);
+	public int getUnsignedByte(long offset);
+	
+	// Little endian.
+	public int getU16(long offset);
+	public int getS16(long offset);
+	public long getU32(long offset);
+	
+	// Reads a pointer into the ROM (i.e. 0x08XXXXXX) and returns the offset it points to, or -1 if it's not a valid pointer.
+	public long getGBAPointer(long offset);
+	
+	// Copies up to length bytes starting at offset into destination. Returns the number of bytes actually copied.
+	public int getBytes(long offset, byte[] destination, int destinationOffset, int length);
+	
+	// Same as getBytes, but without any applied diffs.
+	public int getRawBytes(long offset, byte[] destination, int destinationOffset, int length);
+	
+	// Writes length bytes starting at offset to the channel, without any applied diffs. Returns the number of bytes written.
+	public long writeBytesToChannel(long offset, long length, WritableByteChannel channel) throws IOException;
+	
+	public long getNextReadOffset();
+	public void setNextReadOffset(long newOffset);
+	
+	public byte continueReadingNextByte();
+	public byte[] continueReadingBytes(int numBytes);
+	public byte[] continueReadingBytesUpToNextTerminator(long maxOffset);
+	public byte[] readBytesAtOffset(long offset, int numBytes);
+	
+	// Nothing can be read after this.
+	public void close();
+}
@@ -1,188 +1,179 @@
 package io;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
 
 import util.DebugPrinter;
-import util.FileReadHelper;
 import util.WhyDoesJavaNotHaveThese;
 
 public class UPSPatcher {
 	
+	// Writes the patched result to targetFile.
 	public static Boolean applyUPSPatch(String patchFile, String sourceFile, String targetFile, UPSPatcherStatusListener listener) {
 		try {
-			InputStream stream = UPSPatcher.class.getClassLoader().getResourceAsStream(patchFile);
-			Path temp = Files.createTempFile("file", "temp");
-			Files.copy(stream, temp, StandardCopyOption.REPLACE_EXISTING);
-			stream.close();
-			
-			if (listener != null) { listener.onMessageUpdate("Opening patch file..."); }
-			FileHandler patchHandler = new FileHandler(temp.toString());
-			if (listener != null) { listener.onMessageUpdate("Reading Magic number..."); }
-			byte[] header = patchHandler.readBytesAtOffset(0, 4);
-			if (!WhyDoesJavaNotHaveThese.byteArraysAreEqual(header, new byte[] {0x55, 0x50, 0x53, 0x31})) {
-				return false;
-			}
-			
-			if (listener != null) { listener.onMessageUpdate("Reading input length..."); }
-			long inputLength = readVariableWidthOffset(patchHandler);
-			if (listener != null) { listener.onMessageUpdate("Reading output length..."); }
-			long outputLength = readVariableWidthOffset(patchHandler);
-			
-			if (listener != null) { listener.onMessageUpdate("Loading CRC32s..."); }
-			long oldReadOffset = patchHandler.getNextReadOffset();
-			long sourceCRC = FileReadHelper.readWord(patchHandler, patchHandler.getFileLength() - 12, false);
-			patchHandler.setNextReadOffset(oldReadOffset);
-			
 			if (listener != null) { listener.onMessageUpdate("Opening source file..."); }
-			FileHandler sourceHandler = new FileHandler(sourceFile);
-			if (listener != null) { listener.onMessageUpdate("Opening output stream..."); }
-			FileOutputStream outputStream = new FileOutputStream(targetFile);
-			
-			if (inputLength != sourceHandler.getFileLength()) {
-				System.err.println("UPS patch failed. Input file length is incorrect.");
-				outputStream.close();
-				return false;
-			}
-			if (sourceCRC != sourceHandler.getCRC32()) {
-				System.err.println("UPS patch failed. Input checksum is incorrect.");
-				outputStream.close();
-				return false;
-			}
-			
-			long totalBytesWritten = 0;
-			
-			DebugPrinter.log(DebugPrinter.Key.UPS, "Patching UPS file: " + patchFile);
-			DebugPrinter.log(DebugPrinter.Key.UPS, "Input Length:  " + inputLength);
-			DebugPrinter.log(DebugPrinter.Key.UPS, "Expected Result Length: " + outputLength);
-			
-			long bytesToSkip = 0;
-			long lastWrittenOffset = 0;
-			
-			if (listener != null) { listener.onMessageUpdate("Patching..."); }
-			
-			while (patchHandler.getNextReadOffset() < patchHandler.getFileLength() - 12) {
-				bytesToSkip = readVariableWidthOffset(patchHandler);
-				DebugPrinter.log(DebugPrinter.Key.UPS, "Skipping " + bytesToSkip + " bytes");
-				if (lastWrittenOffset + bytesToSkip > outputLength) { continue; }
-				
-				int sourceBytesLength = 0;
-				if (lastWrittenOffset + 1 < inputLength) {
-					byte[] sourceBytes = sourceHandler.readBytesAtOffset(lastWrittenOffset, (int)bytesToSkip);
-					outputStream.write(sourceBytes);
-					totalBytesWritten += sourceBytes.length;
-					sourceBytesLength = sourceBytes.length;
-					DebugPrinter.log(DebugPrinter.Key.UPS, "Read/copied " + sourceBytesLength + " bytes from the source.");
-				}
-				if (sourceBytesLength < bytesToSkip) {
-					int difference = (int)bytesToSkip - sourceBytesLength;
-					byte[] zeros = new byte[difference];
-					for (int i = 0; i < difference; i++) {
-						zeros[i] = 0;
-					}
-					outputStream.write(zeros);
-					totalBytesWritten += zeros.length;
-					DebugPrinter.log(DebugPrinter.Key.UPS, "Filled in " + zeros.length + " bytes worth of 0.");
-				}
-				lastWrittenOffset += bytesToSkip;
-				DebugPrinter.log(DebugPrinter.Key.UPS, "Starting diffs from offset 0x" + Long.toHexString(lastWrittenOffset).toUpperCase());
-				
-				byte[] delta = patchHandler.continueReadingBytesUpToNextTerminator((int)patchHandler.getFileLength() - 12);
-				if (delta == null) {
-					DebugPrinter.log(DebugPrinter.Key.UPS, "No more differences found.");
-					if (totalBytesWritten < outputLength) {
-						long differenceRemaining = outputLength - totalBytesWritten;
-						DebugPrinter.log(DebugPrinter.Key.UPS, "Filling in remaining " + differenceRemaining + " bytes with 0s.");
-						while (differenceRemaining > 0) {
-							int chunk = 0;
-							if (differenceRemaining > Integer.MAX_VALUE) {
-								chunk = Integer.MAX_VALUE;
-								differenceRemaining -= Integer.MAX_VALUE;
-							} else {
-								chunk = (int)differenceRemaining;
-								differenceRemaining = 0;
-							}
-							byte[] zeros = new byte[chunk];
-							for (int i = 0; i < chunk; i++) {
-								zeros[i] = 0;
-							}
-							
-							outputStream.write(zeros);
-							totalBytesWritten += zeros.length;
-						}
-					} else if (totalBytesWritten > outputLength) {
-						System.err.println("Warning: Bytes written exceeds expected result size.");
-					}
-					break;
-				}
-				int deltaLength = delta.length;
-				byte[] sourceBytes = lastWrittenOffset + 1 < inputLength ? sourceHandler.readBytesAtOffset(lastWrittenOffset, deltaLength) : new byte[] {};
-				byte[] resultBytes = new byte[deltaLength];
-				for (int i = 0; i < deltaLength; i++) {
-					byte result = (byte)((delta[i] & 0xFF) ^ (i < sourceBytes.length ? (sourceBytes[i] & 0xFF) : 0));
-					outputStream.write(result);
-					totalBytesWritten += 1;
-					resultBytes[i] = result;
-					lastWrittenOffset++;
-				}
-				DebugPrinter.log(DebugPrinter.Key.UPS, "Wrote " + deltaLength + " bytes");
-				DebugPrinter.log(DebugPrinter.Key.UPS, "Bytes written: " + WhyDoesJavaNotHaveThese.displayStringForBytes(resultBytes));
-			}
-			
-			outputStream.close();
-			
-			long targetCRC = FileReadHelper.readWord(patchHandler, patchHandler.getFileLength() - 8, false);
-			
-			FileHandler resultHandler = new FileHandler(targetFile);
-			long resultCRC = resultHandler.getCRC32();
-			resultHandler.close();
-			resultHandler = null;
-			
-			if (targetCRC != resultCRC) {
-				System.err.println("Resulting checksum is incorrect. Expected: " + Long.toHexString(targetCRC).toUpperCase() + " Actual: " + Long.toHexString(resultCRC).toUpperCase());
-				return false;
-			}
+			RomImage sourceHandler = new FileHandler(sourceFile);
+			byte[] result = applyUPSPatchToBytes(patchFile, sourceHandler, listener);
+			sourceHandler.close();
+			if (result == null) { return false; }
 			
+			if (listener != null) { listener.onMessageUpdate("Writing output..."); }
+			FileWriter.writeBinaryDataToFile(result, targetFile);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
 			return false;
 		}
 		
 		return true;
 	}
-
-	private static long readVariableWidthOffset(FileHandler handler) {
-//		long offset = 0;
-//		long shift = 0;
-//		
-//		for(;;) {
-//			byte currentByte = handler.continueReadingNextByte();
-//			if ((currentByte & 0x80) != 0) {
-//				offset += ((currentByte & 0x7F) << shift) & 0xFFFFFFFFL;
-//				break;
-//			}
-//			offset += ((currentByte | 0x80) << shift) & 0xFFFFFFFFL;
-//			shift += 7;
-//		}
-//		
-//		return offset;
-		
-		long offset = 0;
-		long shift = 1;
-		
-		for (;;) {
-			byte currentByte = handler.continueReadingNextByte();
-			offset += ((currentByte & 0x7F) * shift) & 0xFFFFFFFFFFFFFFFFL;
-			if ((currentByte & 0x80) != 0) { break; }
-			shift <<= 7;
-			offset += shift;
+	
+	// Patches the source entirely in memory. Returns a handler for the patched ROM, or null if the patch couldn't be applied.
+	// Results are cached on disk (see PatchedROMCache), so patching the same ROM with the same patch again is just a read.
+	public static RomImage applyUPSPatch(String patchFile, RomImage sourceHandler, UPSPatcherStatusListener listener) {
+		byte[] patch = readPatch(patchFile, listener);
+		if (patch == null || !isUPSPatch(patch)) { return null; }
+		
+		CRC32 patchChecksum = new CRC32();
+		patchChecksum.update(patch, 0, patch.length);
+		long patchCRC = patchChecksum.getValue();
+		long targetCRC = readWord(patch, patch.length - 8);
+		
+		RomImage cachedHandler = PatchedROMCache.cachedPatchedROM(sourceHandler.getCRC32(), patchCRC, targetCRC);
+		if (cachedHandler != null) { return cachedHandler; }
+		
+		byte[] result = applyUPSPatchToBytes(patch, patchFile, sourceHandler, listener);
+		if (result == null) { return null; }
+		
+		PatchedROMCache.storePatchedROM(sourceHandler.getCRC32(), patchCRC, result);
+		
+		return new HeapRomImage(result, sourceHandler.getName() + " (" + patchFile + ")");
+	}
+	
+	private static byte[] applyUPSPatchToBytes(String patchFile, RomImage sourceHandler, UPSPatcherStatusListener listener) {
+		byte[] patch = readPatch(patchFile, listener);
+		if (patch == null) { return null; }
+		return applyUPSPatchToBytes(patch, patchFile, sourceHandler, listener);
+	}
+	
+	private static byte[] readPatch(String patchFile, UPSPatcherStatusListener listener) {
+		try {
+			if (listener != null) { listener.onMessageUpdate("Opening patch file..."); }
+			InputStream stream = UPSPatcher.class.getClassLoader().getResourceAsStream(patchFile);
+			byte[] patch = WhyDoesJavaNotHaveThese.readAllBytes(stream);
+			stream.close();
+			return patch;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	private static boolean isUPSPatch(byte[] patch) {
+		return patch.length >= 16 && WhyDoesJavaNotHaveThese.byteArrayHasPrefix(patch, new byte[] {0x55, 0x50, 0x53, 0x31});
+	}
+	
+	private static byte[] applyUPSPatchToBytes(byte[] patch, String patchName, RomImage sourceHandler, UPSPatcherStatusListener listener) {
+		if (listener != null) { listener.onMessageUpdate("Reading Magic number..."); }
+		if (!isUPSPatch(patch)) {
+			return null;
+		}
+		
+		PatchReader reader = new PatchReader(patch, 4);
+		
+		if (listener != null) { listener.onMessageUpdate("Reading input length..."); }
+		long inputLength = reader.readVariableWidthOffset();
+		if (listener != null) { listener.onMessageUpdate("Reading output length..."); }
+		long outputLength = reader.readVariableWidthOffset();
+		
+		if (listener != null) { listener.onMessageUpdate("Loading CRC32s..."); }
+		int footerOffset = patch.length - 12;
+		long sourceCRC = readWord(patch, footerOffset);
+		long targetCRC = readWord(patch, footerOffset + 4);
+		
+		if (inputLength != sourceHandler.getFileLength()) {
+			System.err.println("UPS patch failed. Input file length is incorrect.");
+			return null;
+		}
+		if (sourceCRC != sourceHandler.getCRC32()) {
+			System.err.println("UPS patch failed. Input checksum is incorrect.");
+			return null;
 		}
+		if (outputLength > Integer.MAX_VALUE) {
+			System.err.println("UPS patch failed. Output is too large.");
+			return null;
+		}
+		
+		DebugPrinter.log(DebugPrinter.Key.UPS, "Patching UPS file: " + patchName);
+		DebugPrinter.log(DebugPrinter.Key.UPS, "Input Length:  " + inputLength);
+		DebugPrinter.log(DebugPrinter.Key.UPS, "Expected Result Length: " + outputLength);
+		
+		// Start with the source (anything past its end is 0) and XOR each of the patch's runs into it.
+		byte[] output = new byte[(int)outputLength];
+		sourceHandler.getBytes(0, output, 0, (int)Math.min(inputLength, outputLength));
 		
-		return offset;
+		if (listener != null) { listener.onMessageUpdate("Patching..."); }
+		
+		long outputOffset = 0;
+		while (reader.position < footerOffset) {
+			long bytesToSkip = reader.readVariableWidthOffset();
+			outputOffset += bytesToSkip;
+			DebugPrinter.log(DebugPrinter.Key.UPS, "Skipping " + bytesToSkip + " bytes. Starting diffs from offset 0x" + Long.toHexString(outputOffset).toUpperCase());
+			
+			// Each run ends with a 0, which is XOR'd in (i.e. left alone) like any other byte.
+			long runStart = outputOffset;
+			while (reader.position < footerOffset) {
+				byte delta = reader.nextByte();
+				if (outputOffset < outputLength) {
+					output[(int)outputOffset] ^= delta;
+				}
+				outputOffset++;
+				if (delta == 0) { break; }
+			}
+			DebugPrinter.log(DebugPrinter.Key.UPS, "Wrote " + (outputOffset - runStart) + " bytes");
+		}
+		
+		CRC32 checksum = new CRC32();
+		checksum.update(output, 0, output.length);
+		long resultCRC = checksum.getValue();
+		if (targetCRC != resultCRC) {
+			System.err.println("Resulting checksum is incorrect. Expected: " + Long.toHexString(targetCRC).toUpperCase() + " Actual: " + Long.toHexString(resultCRC).toUpperCase());
+			return null;
+		}
+		
+		return output;
+	}
+	
+	private static long readWord(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) | ((data[offset + 2] & 0xFF) << 16) | ((long)(data[offset + 3] & 0xFF) << 24));
+	}
+	
+	private static class PatchReader {
+		final byte[] data;
+		int position;
+		
+		PatchReader(byte[] data, int position) {
+			this.data = data;
+			this.position = position;
+		}
+		
+		byte nextByte() {
+			return data[position++];
+		}
+		
+		long readVariableWidthOffset() {
+			long offset = 0;
+			long shift = 1;
+			
+			for (;;) {
+				byte currentByte = nextByte();
+				offset += ((currentByte & 0x7F) * shift) & 0xFFFFFFFFFFFFFFFFL;
+				if ((currentByte & 0x80) != 0) { break; }
+				shift <<= 7;
+				offset += shift;
+			}
+			
+			return offset;
+		}
 	}
 }
@@ -23,7 +23,7 @@ import fedata.gba.fe8.FE8Data;
 import fedata.gba.fe8.FE8WorldMapEvent;
 import fedata.gba.general.CharacterNudge;
 import fedata.general.FEBase;
-import io.FileHandler;
+import io.RomImage;
 import util.DebugPrinter;
 import util.Diff;
 import util.DiffCompiler;
@@ -41,7 +41,7 @@ public class ChapterLoader {
 	
 	public static final String RecordKeeperCategoryKey = "Chapters";
 
-	public ChapterLoader(FEBase.GameType gameType, FileHandler handler) {
+	public ChapterLoader(FEBase.GameType gameType, RomImage handler) {
 		super();
 		this.gameType = gameType;
 		
@@ -14,7 +14,7 @@ import fedata.gba.GBAFECharacterData;
 import fedata.gba.GBAFEClassData;
 import fedata.gba.general.GBAFECharacter;
 import fedata.gba.general.GBAFECharacterProvider;
-import io.FileHandler;
+import io.RomImage;
 import util.Diff;
 import util.DiffCompiler;
 import util.FileReadHelper;
@@ -35,7 +35,30 @@ public class CharacterDataLoader {
 	
 	public static final String RecordKeeperCategoryKey = "Characters";
 	
-	public CharacterDataLoader(GBAFECharacterProvider provider, FileHandler handler) {
+	// Character traits, one bit each. These never change, so they're worked out for every ID up front.
+	private static final long TraitPlayable = 1L << 0;
+	private static final long TraitBoss = 1L << 1;
+	private static final long TraitCanChange = 1L << 2;
+	private static final long TraitLord = 1L << 3;
+	private static final long TraitThief = 1L << 4;
+	private static final long TraitSpecial = 1L << 5;
+	private static final long TraitCanBuff = 1L << 6;
+	private static final long TraitRequiresRange = 1L << 7;
+	private static final long TraitRequiresMelee = 1L << 8;
+	private static final long TraitMustAttack = 1L << 9;
+	private static final long TraitFemale = 1L << 10;
+	private static final long TraitMustPromote = 1L << 11;
+	private static final long TraitFlier = 1L << 12;
+	
+	// Indexed by character ID. IDs past the end are looked up from the provider.
+	private long[] characterTraits;
+	
+	private Set<GBAFECharacter> mustAttackSet;
+	private Set<GBAFECharacter> femaleSet;
+	private Set<GBAFECharacter> mustPromoteSet;
+	private Set<GBAFECharacter> flierSet;
+	
+	public CharacterDataLoader(GBAFECharacterProvider provider, RomImage handler) {
 		super();
 		this.provider = provider;
 		long baseAddress = FileReadHelper.readAddress(handler, provider.characterDataTablePointer());
@@ -58,6 +81,44 @@ public class CharacterDataLoader {
 		for (int characterID : counters.keySet()) {
 			counterMap.put(characterID, characterMap.get(counters.get(characterID).getID()));
 		}
+		
+		mustAttackSet = provider.mustAttack();
+		femaleSet = provider.femaleSet();
+		mustPromoteSet = provider.mustPromote();
+		flierSet = provider.allFliers();
+		
+		// Character IDs are a byte in the data, but cover anything the provider knows about, just in case.
+		int maxCharacterID = 0xFF;
+		for (GBAFECharacter character : provider.allCharacters()) {
+			maxCharacterID = Math.max(maxCharacterID, character.getID());
+		}
+		characterTraits = new long[maxCharacterID + 1];
+		for (int i = 0; i < characterTraits.length; i++) {
+			characterTraits[i] = traitsForCharacter(provider.characterWithID(i));
+		}
+	}
+	
+	private long traitsForCharacter(GBAFECharacter character) {
+		long traits = 0;
+		if (character.isPlayable()) { traits |= TraitPlayable; }
+		if (character.isBoss()) { traits |= TraitBoss; }
+		if (character.canChange()) { traits |= TraitCanChange; }
+		if (character.isLord()) { traits |= TraitLord; }
+		if (character.isThief()) { traits |= TraitThief; }
+		if (character.isSpecial()) { traits |= TraitSpecial; }
+		if (character.canBuff()) { traits |= TraitCanBuff; }
+		if (character.requiresRange()) { traits |= TraitRequiresRange; }
+		if (character.requiresMelee()) { traits |= TraitRequiresMelee; }
+		if (mustAttackSet.contains(character)) { traits |= TraitMustAttack; }
+		if (femaleSet.contains(character)) { traits |= TraitFemale; }
+		if (mustPromoteSet.contains(character)) { traits |= TraitMustPromote; }
+		if (flierSet.contains(character)) { traits |= TraitFlier; }
+		return traits;
+	}
+	
+	private Boolean hasTrait(int characterID, long trait) {
+		long traits = characterID >= 0 && characterID < characterTraits.length ? characterTraits[characterID] : traitsForCharacter(provider.characterWithID(characterID));
+		return (traits & trait) != 0;
 	}
 	
 	public String debugStringForCharacter(int characterID) {
@@ -114,33 +175,33 @@ public class CharacterDataLoader {
 	}
 	
 	public Boolean isPlayableCharacterID(int characterID) {
-		return provider.characterWithID(characterID).isPlayable();
+		return hasTrait(characterID, TraitPlayable);
 	}
 	
 	public Boolean isBossCharacterID(int characterID) {
-		return provider.characterWithID(characterID).isBoss();
+		return hasTrait(characterID, TraitBoss);
 	}
 	
 	// Generally used for minions, whose character IDs we don't track, so nulls are probably pointing to minion characters.
 		// Those are generally safe to change.
 	public Boolean canChangeCharacterID(int characterID) {
-		return provider.characterWithID(characterID).canChange();
+		return hasTrait(characterID, TraitCanChange);
 	}
 	
 	public Boolean isLordCharacterID(int characterID) {
-		return provider.characterWithID(characterID).isLord();
+		return hasTrait(characterID, TraitLord);
 	}
 	
 	public Boolean isThiefCharacterID(int characterID) {
-		return provider.characterWithID(characterID).isThief();
+		return hasTrait(characterID, TraitThief);
 	}
 	
 	public Boolean isSpecialCharacterID(int characterID) {
-		return provider.characterWithID(characterID).isSpecial();
+		return hasTrait(characterID, TraitSpecial);
 	}
 	
 	public Boolean canBuff(int characterID) {
-		return provider.characterWithID(characterID).canBuff();
+		return hasTrait(characterID, TraitCanBuff);
 	}
 	
 	public int[] validAffinityValues() {
@@ -148,26 +209,23 @@ public class CharacterDataLoader {
 	}
 	
 	public Boolean characterIDRequiresRange(int characterID) {
-		return provider.characterWithID(characterID).requiresRange();
+		return hasTrait(characterID, TraitRequiresRange);
 	}
 	
 	public Boolean characterIDRequiresMelee(int characterID) {
-		return provider.characterWithID(characterID).requiresMelee();
+		return hasTrait(characterID, TraitRequiresMelee);
 	}
 	
 	public Boolean mustAttack(int characterID) {
-		GBAFECharacter character = provider.characterWithID(characterID);
-		return provider.mustAttack().contains(character);
+		return hasTrait(characterID, TraitMustAttack);
 	}
 	
 	public Boolean isFemale(int characterID) {
-		GBAFECharacter character = provider.characterWithID(characterID);
-		return provider.femaleSet().contains(character);
+		return hasTrait(characterID, TraitFemale);
 	}
 	
 	public Boolean mustPromote(int characterID) {
-		GBAFECharacter character = provider.characterWithID(characterID);
-		return provider.mustPromote().contains(character);
+		return hasTrait(characterID, TraitMustPromote);
 	}
 	
 	public GBAFECharacterData characterRequiresCounterToCharacter(GBAFECharacterData character) {
@@ -183,8 +241,7 @@ public class CharacterDataLoader {
 	}
 	
 	public Boolean isFlyingCharacter(int characterID) {
-		GBAFECharacter character = provider.characterWithID(characterID);
-		return provider.allFliers().contains(character);
+		return hasTrait(characterID, TraitFlier);
 	}
 	
 	public int getCanonicalIDForCharacter(GBAFECharacterData character) {
@@ -13,7 +13,7 @@ import java.util.stream.Collectors;
 import fedata.gba.GBAFEClassData;
 import fedata.gba.general.GBAFEClass;
 import fedata.gba.general.GBAFEClassProvider;
-import io.FileHandler;
+import io.RomImage;
 import util.Diff;
 import util.DiffCompiler;
 import util.FileReadHelper;
@@ -25,9 +25,28 @@ public class ClassDataLoader {
 	
 	private Map<Integer, GBAFEClassData> classMap = new HashMap<Integer, GBAFEClassData>();
 	
+	// Results of potentialClasses, keyed by source class, class to lose to, and options. The provider's answers only depend on those, so they only have to be worked out once.
+	private Map<Long, long[]> candidateIndex = new HashMap<Long, long[]>();
+	
 	public static final String RecordKeeperCategoryKey = "Classes";
 	
-	public ClassDataLoader(GBAFEClassProvider provider, FileHandler handler) {
+	// Class traits, one bit each. These never change, so they're worked out for every ID up front.
+	private static final long TraitLord = 1L << 0;
+	private static final long TraitThief = 1L << 1;
+	private static final long TraitFemale = 1L << 2;
+	private static final long TraitPromoted = 1L << 3;
+	private static final long TraitCanAttack = 1L << 4;
+	private static final long TraitCanDemote = 1L << 5;
+	private static final long TraitCanPromote = 1L << 6;
+	private static final long TraitFlier = 1L << 7;
+	private static final long TraitMeleeSupported = 1L << 8;
+	private static final long TraitRangeSupported = 1L << 9;
+	private static final long TraitValid = 1L << 10;
+	
+	// Indexed by class ID. Anything the provider doesn't know about has no traits.
+	private long[] classTraits;
+	
+	public ClassDataLoader(GBAFEClassProvider provider, RomImage handler) {
 		super();
 		this.provider = provider;
 		
@@ -61,6 +80,43 @@ public class ClassDataLoader {
 		}
 		
 		provider.prepareForClassRandomization(classMap);
+		
+		buildClassTraits();
+	}
+	
+	private void buildClassTraits() {
+		Set<GBAFEClass> meleeSupported = provider.meleeSupportedClasses();
+		Set<GBAFEClass> rangeSupported = provider.rangeSupportedClasses();
+		Set<GBAFEClass> validClasses = provider.allValidClasses();
+		
+		// Class IDs are a byte in the data, but cover anything the provider knows about, just in case.
+		int maxClassID = 0xFF;
+		for (GBAFEClass charClass : provider.allClasses()) {
+			maxClassID = Math.max(maxClassID, charClass.getID());
+		}
+		classTraits = new long[maxClassID + 1];
+		for (int i = 0; i < classTraits.length; i++) {
+			GBAFEClass charClass = provider.classWithID(i);
+			if (charClass == null) { continue; }
+			
+			long traits = 0;
+			if (charClass.isLord()) { traits |= TraitLord; }
+			if (charClass.isThief()) { traits |= TraitThief; }
+			if (charClass.isFemale()) { traits |= TraitFemale; }
+			if (charClass.isPromoted()) { traits |= TraitPromoted; }
+			if (charClass.canAttack()) { traits |= TraitCanAttack; }
+			if (provider.canClassDemote(charClass)) { traits |= TraitCanDemote; }
+			if (provider.canClassPromote(charClass)) { traits |= TraitCanPromote; }
+			if (provider.isFlier(charClass)) { traits |= TraitFlier; }
+			if (meleeSupported.contains(charClass)) { traits |= TraitMeleeSupported; }
+			if (rangeSupported.contains(charClass)) { traits |= TraitRangeSupported; }
+			if (validClasses.contains(charClass)) { traits |= TraitValid; }
+			classTraits[i] = traits;
+		}
+	}
+	
+	private Boolean hasTrait(int classID, long trait) {
+		return classID >= 0 && classID < classTraits.length && (classTraits[classID] & trait) != 0;
 	}
 	
 	public GBAFEClassData[] allClasses() {
@@ -92,18 +148,15 @@ public class ClassDataLoader {
 	}
 	
 	public Boolean isLordClass(int classID) {
-		GBAFEClass charClass = provider.classWithID(classID);
-		return charClass != null ? charClass.isLord() : false;
+		return hasTrait(classID, TraitLord);
 	}
 	
 	public Boolean isThief(int classID) {
-		GBAFEClass charClass = provider.classWithID(classID);
-		return charClass != null ? charClass.isThief() : false;
+		return hasTrait(classID, TraitThief);
 	}
 	
 	public Boolean isFemale(int classID) {
-		GBAFEClass charClass = provider.classWithID(classID);
-		return charClass != null ? charClass.isFemale() : false;
+		return hasTrait(classID, TraitFemale);
 	}
 	
 	public GBAFEClassData[] potentialClasses(GBAFEClassData sourceClass, Boolean excludeLords, Boolean excludeThieves, Boolean excludeSpecial, Boolean excludeSource, Boolean requireAttack, Boolean requireRange, Boolean requireMelee, Boolean applyRestrictions, GBAFEClassData mustLoseToClass) {
@@ -111,19 +164,37 @@ public class ClassDataLoader {
 	}
 	
 	public GBAFEClassData[] potentialClasses(GBAFEClassData sourceClass, Boolean excludeLords, Boolean excludeThieves, Boolean excludeSpecial, Boolean separateMonsters, Boolean excludeSource, Boolean requireAttack, Boolean requireRange, Boolean requireMelee, Boolean applyRestrictions, GBAFEClassData mustLoseToClass) {
+		int options = optionBit(excludeLords, 0) | optionBit(excludeThieves, 1) | optionBit(excludeSpecial, 2) | optionBit(separateMonsters, 3) | optionBit(excludeSource, 4) |
+				optionBit(requireAttack, 5) | optionBit(requireRange, 6) | optionBit(requireMelee, 7) | optionBit(applyRestrictions, 8);
+		long key = ((long)sourceClass.getID() << 32) | ((long)(mustLoseToClass != null ? mustLoseToClass.getID() + 1 : 0) << 16) | options;
+		
+		long[] candidates = candidateIndex.get(key);
+		if (candidates == null) {
+			candidates = bitsetFromSet(providerPotentialClasses(sourceClass, options, mustLoseToClass));
+			candidateIndex.put(key, candidates);
+		}
+		
+		return feClassesFromBitset(candidates);
+	}
+	
+	private static int optionBit(Boolean option, int bit) {
+		return option != null && option ? 1 << bit : 0;
+	}
+	
+	private Set<GBAFEClass> providerPotentialClasses(GBAFEClassData sourceClass, int optionBits, GBAFEClassData mustLoseToClass) {
 		GBAFEClass sourceCharClass = provider.classWithID(sourceClass.getID());
 		Set<GBAFEClass> targetClasses = null;
 		
 		Map<String, Boolean> options = new HashMap<String, Boolean>();
-		options.put(GBAFEClassProvider.optionKeyExcludeLords, excludeLords);
-		options.put(GBAFEClassProvider.optionKeyExcludeThieves, excludeThieves);
-		options.put(GBAFEClassProvider.optionKeyExcludeSpecial, excludeSpecial);
-		options.put(GBAFEClassProvider.optionKeySeparateMonsters, separateMonsters);
-		options.put(GBAFEClassProvider.optionKeyExcludeSource, excludeSource);
-		options.put(GBAFEClassProvider.optionKeyRequireAttack, requireAttack);
-		options.put(GBAFEClassProvider.optionKeyRequireRange, requireRange);
-		options.put(GBAFEClassProvider.optionKeyRequireMelee, requireMelee);
-		options.put(GBAFEClassProvider.optionKeyApplyRestrictions, applyRestrictions);
+		options.put(GBAFEClassProvider.optionKeyExcludeLords, (optionBits & (1 << 0)) != 0);
+		options.put(GBAFEClassProvider.optionKeyExcludeThieves, (optionBits & (1 << 1)) != 0);
+		options.put(GBAFEClassProvider.optionKeyExcludeSpecial, (optionBits & (1 << 2)) != 0);
+		options.put(GBAFEClassProvider.optionKeySeparateMonsters, (optionBits & (1 << 3)) != 0);
+		options.put(GBAFEClassProvider.optionKeyExcludeSource, (optionBits & (1 << 4)) != 0);
+		options.put(GBAFEClassProvider.optionKeyRequireAttack, (optionBits & (1 << 5)) != 0);
+		options.put(GBAFEClassProvider.optionKeyRequireRange, (optionBits & (1 << 6)) != 0);
+		options.put(GBAFEClassProvider.optionKeyRequireMelee, (optionBits & (1 << 7)) != 0);
+		options.put(GBAFEClassProvider.optionKeyApplyRestrictions, (optionBits & (1 << 8)) != 0);
 		
 		if (mustLoseToClass != null) {
 			targetClasses = provider.classesThatLoseToClass(provider.classWithID(sourceClass.getID()), provider.classWithID(mustLoseToClass.getID()), options);
@@ -133,22 +204,19 @@ public class ClassDataLoader {
 			targetClasses = provider.targetClassesForRandomization(sourceCharClass, options);
 		}
 		
-		return feClassesFromSet(targetClasses);
+		return targetClasses;
 	}
 	
 	public Boolean isPromotedClass(int classID) {
-		GBAFEClass charClass = provider.classWithID(classID);
-		return charClass != null ? charClass.isPromoted() : false;
+		return hasTrait(classID, TraitPromoted);
 	}
 	
 	public Boolean canClassDemote(int classID) {
-		GBAFEClass charClass = provider.classWithID(classID);
-		return charClass != null ? provider.canClassDemote(charClass) : false;
+		return hasTrait(classID, TraitCanDemote);
 	}
 	
 	public Boolean canClassPromote(int classID) {
-		GBAFEClass charClass = provider.classWithID(classID);
-		return charClass != null ? provider.canClassPromote(charClass) : false;
+		return hasTrait(classID, TraitCanPromote);
 	}
 	
 	public List<GBAFEClassData> demotionOptions(int classID) {
@@ -180,28 +248,57 @@ public class ClassDataLoader {
 	}
 	
 	public Boolean isFlying(int classID) {
-		GBAFEClass charClass = provider.classWithID(classID);
-		return charClass != null ? provider.isFlier(charClass) : false;
+		return hasTrait(classID, TraitFlier);
 	}
 	
 	public Boolean canSupportMelee(int classID) {
-		GBAFEClass charClass = provider.classWithID(classID);
-		return provider.meleeSupportedClasses().contains(charClass);
+		return hasTrait(classID, TraitMeleeSupported);
 	}
 	
 	public Boolean canSupportRange(int classID) {
-		GBAFEClass charClass = provider.classWithID(classID);
-		return provider.rangeSupportedClasses().contains(charClass);
+		return hasTrait(classID, TraitRangeSupported);
 	}
 	
 	public Boolean isValidClass(int classID) {
-		GBAFEClass charClass = provider.classWithID(classID);
-		return provider.allValidClasses().contains(charClass);
+		return hasTrait(classID, TraitValid);
 	}
 	
 	public Boolean canClassAttack(int classID) {
-		GBAFEClass charClass = provider.classWithID(classID);
-		return charClass != null ? charClass.canAttack() : false;
+		return hasTrait(classID, TraitCanAttack);
+	}
+	
+	// Bit n is set if class ID n is in the set.
+	private long[] bitsetFromSet(Set<GBAFEClass> classes) {
+		int maxID = 0;
+		for (GBAFEClass charClass : classes) {
+			maxID = Math.max(maxID, charClass.getID());
+		}
+		
+		long[] bitset = new long[(maxID >> 6) + 1];
+		for (GBAFEClass charClass : classes) {
+			bitset[charClass.getID() >> 6] |= 1L << (charClass.getID() & 0x3F);
+		}
+		return bitset;
+	}
+	
+	// Classes come out sorted by ID.
+	private GBAFEClassData[] feClassesFromBitset(long[] bitset) {
+		int count = 0;
+		for (long word : bitset) {
+			count += Long.bitCount(word);
+		}
+		
+		GBAFEClassData[] classList = new GBAFEClassData[count];
+		int index = 0;
+		for (int i = 0; i < bitset.length; i++) {
+			long word = bitset[i];
+			while (word != 0) {
+				classList[index++] = classForID((i << 6) + Long.numberOfTrailingZeros(word));
+				word &= word - 1;
+			}
+		}
+		
+		return classList;
 	}
 	
 	private GBAFEClassData[] feClassesFromSet(Set<GBAFEClass> classes) {
@@ -21,7 +21,7 @@ import fedata.gba.general.GBAFEItemProvider.WeaponRanks;
 import fedata.gba.general.GBAFEPromotionItem;
 import fedata.gba.general.WeaponRank;
 import fedata.gba.general.WeaponType;
-import io.FileHandler;
+import io.RomImage;
 import util.Diff;
 import util.DiffCompiler;
 import util.FileReadHelper;
@@ -55,7 +55,7 @@ public class ItemDataLoader {
 	
 	public static final String RecordKeeperCategoryWeaponKey = "Weapons";
 	
-	public ItemDataLoader(GBAFEItemProvider provider, FileHandler handler, FreeSpaceManager freeSpace) {
+	public ItemDataLoader(GBAFEItemProvider provider, RomImage handler, FreeSpaceManager freeSpace) {
 		super();
 		
 		this.freeSpace = freeSpace;
@@ -469,13 +469,13 @@ public class ItemDataLoader {
 		return items;
 	}
 	
-	public void recordWeapons(RecordKeeper rk, Boolean isInitial, ClassDataLoader classData, TextLoader textData, FileHandler handler) {
+	public void recordWeapons(RecordKeeper rk, Boolean isInitial, ClassDataLoader classData, TextLoader textData, RomImage handler) {
 		for (GBAFEItemData item : getAllWeapons()) {
 			recordWeapon(rk, item, isInitial, classData, textData, handler);
 		}
 	}
 	
-	private void recordWeapon(RecordKeeper rk, GBAFEItemData item, Boolean isInitial, ClassDataLoader classData, TextLoader textData, FileHandler handler) {
+	private void recordWeapon(RecordKeeper rk, GBAFEItemData item, Boolean isInitial, ClassDataLoader classData, TextLoader textData, RomImage handler) {
 		int nameIndex = item.getNameIndex();
 		String name = textData.getStringAtIndex(nameIndex, true).trim();
 		int descriptionIndex = item.getDescriptionIndex();
@@ -20,7 +20,7 @@ import fedata.gba.general.PaletteV2;
 import fedata.gba.general.PaletteV2.PaletteType;
 import fedata.general.FEBase;
 import fedata.general.FEBase.GameType;
-import io.FileHandler;
+import io.RomImage;
 import util.DebugPrinter;
 import util.Diff;
 import util.DiffCompiler;
@@ -56,7 +56,7 @@ public class PaletteLoader {
 	
 	private List<Integer> emptyPaletteIDs = new ArrayList<Integer>();
 	
-	public PaletteLoader(FEBase.GameType gameType, FileHandler handler, CharacterDataLoader charData, ClassDataLoader classData) {
+	public PaletteLoader(FEBase.GameType gameType, RomImage handler, CharacterDataLoader charData, ClassDataLoader classData) {
 		this.gameType = gameType;
 		
 		switch (gameType) {
@@ -249,7 +249,7 @@ public class PaletteLoader {
 		}
 	}
 	
-	public FE8PaletteMapper setupFE8SpecialManagers(FileHandler handler, FE8PromotionManager promotionManager) {
+	public FE8PaletteMapper setupFE8SpecialManagers(RomImage handler, FE8PromotionManager promotionManager) {
 		assert gameType == GameType.FE8 : "Special setup only needs to be called for FE8.";
 		// FE8PaletteMapper will handle the empty palettes for us. All we need to be prepared for is the chance of a palette ID not existing yet.
 		fe8Mapper = new FE8PaletteMapper(handler, promotionManager, emptyPaletteIDs);
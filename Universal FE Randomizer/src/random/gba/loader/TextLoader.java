@@ -1,15 +1,23 @@
 package random.gba.loader;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import fedata.gba.fe6.FE6Data;
 import fedata.gba.fe7.FE7Data;
 import fedata.gba.fe8.FE8Data;
 import fedata.general.FEBase;
 import fedata.general.FEBase.GameType;
-import io.FileHandler;
+import io.RomImage;
 import util.DebugPrinter;
 import util.Diff;
 import util.DiffCompiler;
@@ -21,6 +29,8 @@ import util.WhyDoesJavaNotHaveThese;
 public class TextLoader {
 	private FEBase.GameType gameType;
 	
+	// In eager mode, every string is decoded up front and lives here.
+	// In lazy mode, this only holds strings that have been committed (or every string, after decodeAllStrings). Everything else is decoded when asked for and kept in decodedStrings.
 	private String[] allStrings;
 	private HuffmanHelper huffman;
 	
@@ -28,78 +38,242 @@ public class TextLoader {
 	
 	private long treeAddress;
 	private long rootAddress;
-
+	
+	private long[] textAddresses;
+	private int firstStringIndex;
+	
+	private boolean isLazy;
+	private Map<Integer, String> decodedStrings;
+	private Thread prefetchThread;
+	
 	private Map<Integer, String> replacementsWithCodes = new HashMap<Integer, String>();
 	
+	// getStringAtIndex(index, true) results, so that codes are only stripped once per string.
+	private Map<Integer, String> strippedStrings = new HashMap<Integer, String>();
+	
+	// Used when committing. Encoded strings that were put in free space (so that duplicates can point to the same place),
+	// how much room each string's original spot has, and the original offsets sorted (to work that out).
+	private Map<ByteBuffer, Long> sharedStringOffsets = new HashMap<ByteBuffer, Long>();
+	private Map<Integer, Integer> originalSlotLengths = new HashMap<Integer, Integer>();
+	private long[] sortedTextAddresses;
+	private long[] furthestEndsBefore; // furthestEndsBefore[p] is how far the strings before position p in sortedTextAddresses reach. Filled in as far as it's been needed.
+	private int furthestEndCount;
+	
 	public Boolean allowTextChanges = false;
 	
-	public TextLoader(FEBase.GameType gameType, FileHandler handler) {
+	private static final long MaximumTextBankGap = 0x100000;
+	private static final long TextBankTrailingLength = 0x1000;
+	
+	// Lazily decoded strings past this many are dropped (least recently used first) and decoded again if they're needed again.
+	private static final int MaximumCachedStringCount = 2048;
+	
+	// Eager loading decodes in parallel, in ranges of (at most) this many strings.
+	private static final int StringsPerDecodeTask = 128;
+	
+	public TextLoader(FEBase.GameType gameType, RomImage handler) {
+		this(gameType, handler, false);
+	}
+	
+	// In lazy mode, only the pointer table (and the Huffman tree) is read up front. Strings are decoded the first time they're asked for.
+	// Lazy decoding reads from the handler, so it needs to stay open until this loader is done with. It reads the ROM the way it was when this was created,
+	// so diffs added to (or cleared from) the handler afterwards don't change what any string decodes to, and decoding never touches diffs that are still being added to.
+	public TextLoader(FEBase.GameType gameType, RomImage handler, boolean lazy) {
 		super();
 		this.gameType = gameType;
+		this.isLazy = lazy;
 		Date start = new Date();
+		huffman = new HuffmanHelper(handler);
 		switch (gameType) {
 			case FE6: {
-				huffman = new HuffmanHelper(handler);
 				allStrings = new String[FE6Data.NumberOfTextStrings + 1];
+				firstStringIndex = 1;
 				textArrayOffset = FileReadHelper.readAddress(handler, FE6Data.TextTablePointer);
 				treeAddress = FileReadHelper.readAddress(handler, FE6Data.HuffmanTreeStart);
 				rootAddress = FileReadHelper.readAddress(handler, FileReadHelper.readAddress(handler, FE6Data.HuffmanTreeEnd));
-				for (int i = 1; i <= FE6Data.NumberOfTextStrings; i++) {
-					String decoded = huffman.sanitizeByteArrayIntoTextString(huffman.decodeTextAddressWithHuffmanTree(
-							FileReadHelper.readWord(handler, textArrayOffset + 4 * i, false), // FE6 uses the most significant bit on the text address to signify its english encoding, so this is a little less safe.
-							treeAddress, 
-							rootAddress), false, gameType);
-					DebugPrinter.log(DebugPrinter.Key.TEXT_LOADING, "Decoded FE6 String for index 0x" + Integer.toHexString(i).toUpperCase());
-					DebugPrinter.log(DebugPrinter.Key.TEXT_LOADING, decoded);
-					allStrings[i] = decoded;
+				textAddresses = new long[allStrings.length];
+				for (int i = firstStringIndex; i < allStrings.length; i++) {
+					textAddresses[i] = FileReadHelper.readWord(handler, textArrayOffset + 4 * i, false); // FE6 uses the most significant bit on the text address to signify its english encoding, so this is a little less safe.
 				}
 				break;
 			}
 			case FE7: {
-				huffman = new HuffmanHelper(handler);
 				allStrings = new String[FE7Data.NumberOfTextStrings];
+				firstStringIndex = 0;
 				textArrayOffset = FileReadHelper.readAddress(handler, FE7Data.TextTablePointer);
 				treeAddress = FileReadHelper.readAddress(handler, FE7Data.HuffmanTreeStart);
 				rootAddress = FileReadHelper.readAddress(handler, FileReadHelper.readAddress(handler, FE7Data.HuffmanTreeEnd));
-				for (int i = 0; i < FE7Data.NumberOfTextStrings; i++) {
-					String decoded = huffman.sanitizeByteArrayIntoTextString(huffman.decodeTextAddressWithHuffmanTree( 
-							FileReadHelper.readAddress(handler, textArrayOffset + 4 * i), 
-							treeAddress, 
-							rootAddress), false, gameType);
-					DebugPrinter.log(DebugPrinter.Key.TEXT_LOADING, "Decoded FE7 String for index 0x" + Integer.toHexString(i).toUpperCase());
-					DebugPrinter.log(DebugPrinter.Key.TEXT_LOADING, decoded);
-					allStrings[i] = decoded;
+				textAddresses = new long[allStrings.length];
+				for (int i = firstStringIndex; i < allStrings.length; i++) {
+					textAddresses[i] = FileReadHelper.readAddress(handler, textArrayOffset + 4 * i);
 				}
 				break;
 			}
 			case FE8: {
-				huffman = new HuffmanHelper(handler);
 				allStrings = new String[FE8Data.NumberOfTextStrings + 1];
+				firstStringIndex = 1;
 				textArrayOffset = FileReadHelper.readAddress(handler, FE8Data.TextTablePointer);
 				treeAddress = FileReadHelper.readAddress(handler, FE8Data.HuffmanTreeStart);
 				rootAddress = FileReadHelper.readAddress(handler, FileReadHelper.readAddress(handler, FE8Data.HuffmanTreeEnd));
-				for (int i = 1; i <= FE8Data.NumberOfTextStrings; i++) {
-					String decoded = huffman.sanitizeByteArrayIntoTextString(huffman.decodeTextAddressWithHuffmanTree( 
-							FileReadHelper.readAddress(handler, textArrayOffset + 4 * i), 
-							treeAddress, 
-							rootAddress), false, gameType);
-					DebugPrinter.log(DebugPrinter.Key.TEXT_LOADING, "Loaded Text for index 0x" + Integer.toHexString(i) + ": " + decoded);
-					allStrings[i] = decoded;
+				textAddresses = new long[allStrings.length];
+				for (int i = firstStringIndex; i < allStrings.length; i++) {
+					textAddresses[i] = FileReadHelper.readAddress(handler, textArrayOffset + 4 * i);
 				}
 				break;
 			}
 			default:
+				allStrings = new String[0];
+				textAddresses = new long[0];
 				break;
 		}
+		
+		loadTextBank(textAddresses, firstStringIndex);
+		huffman.loadTree(treeAddress, rootAddress);
+		
+		if (isLazy) {
+			huffman.snapshotAppliedDiffs();
+			decodedStrings = new LinkedHashMap<Integer, String>(256, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+					return size() > MaximumCachedStringCount;
+				}
+			};
+		} else {
+			ForkJoinPool.commonPool().invoke(new DecodeRangeTask(firstStringIndex, allStrings.length));
+		}
+		
 		Date end = new Date();
 		DebugPrinter.log(DebugPrinter.Key.TEXT_LOADING, "Text Import took " + Long.toString(end.getTime() - start.getTime()) + "ms");
 		huffman.printCache();
 	}
 	
+	private String decodeString(int index) {
+		String decoded = huffman.sanitizeByteArrayIntoTextString(huffman.decodeTextAddressWithHuffmanTree(textAddresses[index], treeAddress, rootAddress), false, gameType);
+		DebugPrinter.log(DebugPrinter.Key.TEXT_LOADING, "Loaded " + gameType.toString() + " Text for index 0x" + Integer.toHexString(index).toUpperCase() + ": " + decoded);
+		return decoded;
+	}
+	
+	// Decodes every string in [start, end) that isn't already in allStrings, splitting the range up between threads if it's big enough.
+	// Each string only ever goes into its own slot, so the result is the same as decoding them one by one.
+	private class DecodeRangeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final int start;
+		private final int end;
+		
+		private DecodeRangeTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected void compute() {
+			if (end - start <= StringsPerDecodeTask) {
+				for (int i = start; i < end; i++) {
+					if (allStrings[i] == null) { allStrings[i] = decodeString(i); }
+				}
+				return;
+			}
+			
+			int middle = (start + end) >>> 1;
+			invokeAll(new DecodeRangeTask(start, middle), new DecodeRangeTask(middle, end));
+		}
+	}
+	
+	// The original string at index, decoding it now if necessary.
+	private String originalString(int index) {
+		String result = allStrings[index];
+		if (result != null || !isLazy || index < firstStringIndex) { return result; }
+		
+		synchronized (decodedStrings) {
+			result = decodedStrings.get(index);
+		}
+		if (result == null) {
+			result = decodeString(index);
+			synchronized (decodedStrings) {
+				decodedStrings.put(index, result);
+			}
+		}
+		
+		return result;
+	}
+	
+	// Starts decoding the given strings on a background thread, so that they're ready by the time they're asked for.
+	// Only does anything in lazy mode. Anything that isn't done yet when it's asked for is just decoded on the spot.
+	public void prefetchStrings(Collection<Integer> indices) {
+		if (!isLazy || indices.isEmpty()) { return; }
+		
+		final List<Integer> indicesToLoad = new ArrayList<Integer>(indices);
+		prefetchThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int index : indicesToLoad) {
+					if (Thread.currentThread().isInterrupted()) { return; }
+					if (index < firstStringIndex || index >= allStrings.length) { continue; }
+					originalString(index);
+				}
+				DebugPrinter.log(DebugPrinter.Key.TEXT_LOADING, "Prefetched " + indicesToLoad.size() + " strings");
+			}
+		}, "Text Prefetch");
+		prefetchThread.setDaemon(true);
+		prefetchThread.start();
+	}
+	
+	// Decodes every string now (in parallel), the same as eager mode does. Worth it before going through the whole table, rather than decoding one at a time.
+	public void decodeAllStrings() {
+		if (!isLazy) { return; }
+		finishLoading();
+		ForkJoinPool.commonPool().invoke(new DecodeRangeTask(firstStringIndex, allStrings.length));
+		synchronized (decodedStrings) {
+			decodedStrings.clear();
+		}
+	}
+	
+	// Stops any prefetching. Call this before closing the handler this loader was created with.
+	public void finishLoading() {
+		if (prefetchThread == null) { return; }
+		prefetchThread.interrupt();
+		try {
+			prefetchThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		prefetchThread = null;
+	}
+	
+	// Reads the part of the ROM most of the text is in all at once, so that each string doesn't need its own reads.
+	// Strings are grouped wherever they're close together, and only the biggest group is loaded, so a few strings that were moved to free space don't drag the rest of the ROM in with them.
+	private void loadTextBank(long[] textAddresses, int firstIndex) {
+		long[] offsets = new long[textAddresses.length - firstIndex];
+		int offsetCount = 0;
+		for (int i = firstIndex; i < textAddresses.length; i++) {
+			if (textAddresses[i] == -1) { continue; }
+			offsets[offsetCount++] = HuffmanHelper.offsetForTextAddress(textAddresses[i]);
+		}
+		if (offsetCount == 0) { return; }
+		Arrays.sort(offsets, 0, offsetCount);
+		
+		int bestStart = 0;
+		int bestCount = 0;
+		int groupStart = 0;
+		for (int i = 1; i <= offsetCount; i++) {
+			if (i == offsetCount || offsets[i] - offsets[i - 1] > MaximumTextBankGap) {
+				if (i - groupStart > bestCount) {
+					bestStart = groupStart;
+					bestCount = i - groupStart;
+				}
+				groupStart = i;
+			}
+		}
+		
+		// The last string in the group still needs to be read in full.
+		huffman.loadTextBank(offsets[bestStart], offsets[bestStart + bestCount - 1] + TextBankTrailingLength);
+	}
+	
 	public int getStringCount() {
 		return allStrings.length;
 	}
-
+	
 	// Note that we save strings with codes and without codes in separate tables.
 	// When fetching, specifying whether to strip codes determines which to pull from.
 	// If a string with codes is set, retrieving the string without codes will NOT give the modified string
@@ -109,16 +283,55 @@ public class TextLoader {
 		
 		String replacement = replacementsWithCodes.get(index);
 		
-		String result = replacement != null ? replacement : allStrings[index];
+		String result = replacement != null ? replacement : originalString(index);
 		if (result == null) { return ""; }
 		if (!stripCodes) { return result; }
-		return result.replaceAll("\\[[^\\[]*\\]", "");
+		
+		String stripped = strippedStrings.get(index);
+		if (stripped == null) {
+			stripped = stripCodes(result);
+			strippedStrings.put(index, stripped);
+		}
+		return stripped;
 	}
 	
 	public void setStringAtIndex(int index, String string) {
 		if (allowTextChanges) {
 			replacementsWithCodes.put(index, string);
+			strippedStrings.remove(index);
+		}
+	}
+	
+	// Removes codes, the same as replaceAll("\\[[^\\[]*\\]", "") would.
+	// That is, a [ starts a code that runs up to the last ] before the next [ (or the end). A [ without a ] before the next one is left alone.
+	private static String stripCodes(String string) {
+		int firstOpen = string.indexOf('[');
+		if (firstOpen < 0) { return string; }
+		
+		StringBuilder sb = new StringBuilder(string.length());
+		sb.append(string, 0, firstOpen);
+		int length = string.length();
+		int i = firstOpen;
+		while (i < length) {
+			char current = string.charAt(i);
+			if (current != '[') {
+				sb.append(current);
+				i++;
+				continue;
+			}
+			
+			int nextOpen = string.indexOf('[', i + 1);
+			if (nextOpen < 0) { nextOpen = length; }
+			int close = string.lastIndexOf(']', nextOpen - 1);
+			if (close > i) {
+				i = close + 1;
+			} else {
+				sb.append(current);
+				i++;
+			}
 		}
+		
+		return sb.toString();
 	}
 	
 	public HuffmanHelper getHuffman() {
@@ -132,8 +345,11 @@ public class TextLoader {
 		for (int index : replacementsWithCodes.keySet()) {
 			String replacementWithCodes = replacementsWithCodes.get(index);
 			
+			// Nothing to do if this is already what's in the ROM (either originally, or from the last time changes were committed).
+			if (replacementWithCodes.equals(originalString(index))) { continue; }
+			
 			byte[] newByteArray = gameType == GameType.FE6 ? huffman.encodeNonHuffmanString(replacementWithCodes, true) : huffman.encodeString(replacementWithCodes, true);
-			long offset = freeSpace.setValue(newByteArray, "Text At Index 0x" + Integer.toHexString(index));
+			long offset = offsetForEncodedString(index, newByteArray, freeSpace, compiler);
 			if (gameType == GameType.FE6) { offset |= 0x80000000; } // Mark this as uncompressed.
 			long pointer = textArrayOffset + 4 * index;
 			byte[] addressBytes = WhyDoesJavaNotHaveThese.bytesFromAddress(offset);
@@ -142,4 +358,108 @@ public class TextLoader {
 			allStrings[index] = replacementWithCodes; // We can replace these now, since they both have codes on them.
 		}
 	}
+	
+	// Where to put an encoded string. In order of preference:
+	// 1. Wherever an identical string was already put in free space.
+	// 2. Over the original string, if the new one fits and nothing else uses that space.
+	// 3. A new spot in free space.
+	// If the string moves somewhere else, its original space is given back to freeSpace.
+	private long offsetForEncodedString(int index, byte[] encodedString, FreeSpaceManager freeSpace, DiffCompiler compiler) {
+		long originalOffset = HuffmanHelper.offsetForTextAddress(textAddresses[index]);
+		int slotLength = originalSlotLength(index);
+		
+		ByteBuffer encodedKey = ByteBuffer.wrap(encodedString);
+		Long sharedOffset = sharedStringOffsets.get(encodedKey);
+		if (sharedOffset == null && encodedString.length <= slotLength) {
+			DebugPrinter.log(DebugPrinter.Key.TEXT_LOADING, "Text at index 0x" + Integer.toHexString(index) + " written in place at offset 0x" + Long.toHexString(originalOffset));
+			compiler.addDiff(new Diff(originalOffset, encodedString.length, encodedString, null));
+			return originalOffset;
+		}
+		
+		if (slotLength > 0) {
+			freeSpace.releaseSpace(originalOffset, slotLength, "Text At Index 0x" + Integer.toHexString(index) + " moved");
+			originalSlotLengths.put(index, -1);
+		}
+		
+		if (sharedOffset != null) {
+			DebugPrinter.log(DebugPrinter.Key.TEXT_LOADING, "Text at index 0x" + Integer.toHexString(index) + " shares offset 0x" + Long.toHexString(sharedOffset));
+			return sharedOffset;
+		}
+		
+		// Keys have to be unique, since setting a value for an existing key throws out the old one (which something else could be pointing to).
+		String key = "Text At Index 0x" + Integer.toHexString(index);
+		for (int attempt = 2; freeSpace.hasOffsetForKey(key); attempt++) {
+			key = "Text At Index 0x" + Integer.toHexString(index) + " (" + attempt + ")";
+		}
+		long offset = freeSpace.setValue(encodedString, key);
+		sharedStringOffsets.put(encodedKey, offset);
+		return offset;
+	}
+	
+	// How much room the string originally at index has, if it can be safely written over.
+	// That's only the case if no other string starts at the same spot or overlaps it. Returns -1 otherwise.
+	private int originalSlotLength(int index) {
+		Integer cachedLength = originalSlotLengths.get(index);
+		if (cachedLength != null) { return cachedLength; }
+		
+		int length = -1;
+		long[] sortedAddresses = sortedTextAddresses();
+		int position = Arrays.binarySearch(sortedAddresses, (HuffmanHelper.offsetForTextAddress(textAddresses[index]) << 16) | index);
+		if (position >= 0) {
+			long offset = sortedAddresses[position] >>> 16;
+			boolean isShared = (position > 0 && (sortedAddresses[position - 1] >>> 16) == offset) || (position + 1 < sortedAddresses.length && (sortedAddresses[position + 1] >>> 16) == offset);
+			if (!isShared) {
+				length = storedLength(index);
+				if (length > 0 && position + 1 < sortedAddresses.length && (sortedAddresses[position + 1] >>> 16) < offset + length) {
+					length = -1;
+				}
+				// Any earlier string can run into this one (not just the one right before it), if it's long enough.
+				if (length > 0 && furthestEndBefore(position) > offset) {
+					length = -1;
+				}
+			}
+		}
+		
+		originalSlotLengths.put(index, length);
+		return length;
+	}
+	
+	// The furthest any string before position (in sortedTextAddresses) reaches.
+	private long furthestEndBefore(int position) {
+		long[] sortedAddresses = sortedTextAddresses();
+		if (furthestEndsBefore == null) {
+			furthestEndsBefore = new long[sortedAddresses.length + 1];
+			furthestEndCount = 1;
+		}
+		
+		for (; furthestEndCount <= position; furthestEndCount++) {
+			int previous = furthestEndCount - 1;
+			long offset = sortedAddresses[previous] >>> 16;
+			int length = storedLength((int)(sortedAddresses[previous] & 0xFFFF));
+			// If the length can't be worked out, assume it runs into the next string.
+			long end = length > 0 ? offset + length : (sortedAddresses[furthestEndCount] >>> 16) + 1;
+			furthestEndsBefore[furthestEndCount] = Math.max(furthestEndsBefore[previous], end);
+		}
+		
+		return furthestEndsBefore[position];
+	}
+	
+	private int storedLength(int index) {
+		return huffman.storedLengthOfTextAddress(textAddresses[index], treeAddress, rootAddress);
+	}
+	
+	// Every string's original offset (in the upper bits) and index (in the lower 16 bits), sorted.
+	private long[] sortedTextAddresses() {
+		if (sortedTextAddresses != null) { return sortedTextAddresses; }
+		
+		long[] addresses = new long[textAddresses.length - firstStringIndex];
+		int addressCount = 0;
+		for (int i = firstStringIndex; i < textAddresses.length; i++) {
+			if (textAddresses[i] == -1) { continue; }
+			addresses[addressCount++] = (HuffmanHelper.offsetForTextAddress(textAddresses[i]) << 16) | i;
+		}
+		sortedTextAddresses = Arrays.copyOf(addresses, addressCount);
+		Arrays.sort(sortedTextAddresses);
+		return sortedTextAddresses;
+	}
 }
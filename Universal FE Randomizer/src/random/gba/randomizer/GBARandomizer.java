@@ -1,13 +1,15 @@
 package random.gba.randomizer;
 
-import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import fedata.gba.GBAFEChapterData;
@@ -27,6 +29,7 @@ import fedata.general.FEBase;
 import fedata.general.FEBase.GameType;
 import io.DiffApplicator;
 import io.FileHandler;
+import io.RomImage;
 import io.UPSPatcher;
 import random.gba.loader.ChapterLoader;
 import random.gba.loader.CharacterDataLoader;
@@ -34,6 +37,7 @@ import random.gba.loader.ClassDataLoader;
 import random.gba.loader.ItemDataLoader;
 import random.gba.loader.PaletteLoader;
 import random.gba.loader.TextLoader;
+import random.general.LoaderStage;
 import random.general.Randomizer;
 import ui.model.BaseOptions;
 import ui.model.ClassOptions;
@@ -92,8 +96,8 @@ public class GBARandomizer extends Randomizer {
 	
 	private FreeSpaceManager freeSpace;
 	
-	private FileHandler handler;
-
+	private RomImage handler;
+	
 	public GBARandomizer(String sourcePath, String targetPath, FEBase.GameType gameType, DiffCompiler diffs, 
 			GrowthOptions growths, BaseOptions bases, ClassOptions classes, WeaponOptions weapons,
 			OtherCharacterOptions other, EnemyOptions enemies, MiscellaneousOptions otherOptions,
@@ -131,8 +135,6 @@ public class GBARandomizer extends Randomizer {
 			return;
 		}
 		
-		String tempPath = null;
-		
 		switch (gameType) {
 		case FE6:
 			// Apply patch first, if necessary.
@@ -140,20 +142,13 @@ public class GBARandomizer extends Randomizer {
 				updateStatusString("Applying English Patch...");
 				updateProgress(0.05);
 				
-				tempPath = new String(targetPath).concat(".tmp");
-				Boolean success = UPSPatcher.applyUPSPatch("FE6-TLRedux-v1.0.ups", sourcePath, tempPath, null);
-				if (!success) {
-					notifyError("Failed to apply translation patch.");
-					return;
-				}
-				try {
-					handler = new FileHandler(tempPath);
-				} catch (IOException e1) {
-					System.err.println("Unable to open post-patched file.");
-					e1.printStackTrace();
+				RomImage patchedHandler = UPSPatcher.applyUPSPatch("FE6-TLRedux-v1.0.ups", handler, null);
+				if (patchedHandler == null) {
 					notifyError("Failed to apply translation patch.");
 					return;
 				}
+				handler.close();
+				handler = patchedHandler;
 			}
 			updateStatusString("Loading Data...");
 			updateProgress(0.1);
@@ -178,6 +173,7 @@ public class GBARandomizer extends Randomizer {
 		recordKeeper.addHeaderItem("Randomizer Seed Phrase", seed);
 		
 		updateStatusString("Randomizing...");
+		diffCompiler.setActiveSource("Randomization");
 		try { randomizeGrowthsIfNecessary(seed); } catch (Exception e) { notifyError("Encountered error while randomizing growths.\n\n" + e.getClass().getSimpleName() + "\n\nStack Trace:\n\n" + String.join("\n", Arrays.asList(e.getStackTrace()).stream().map(element -> (element.toString())).limit(5).collect(Collectors.toList()))); return; }
 		updateProgress(0.45);
 		try { randomizeClassesIfNecessary(seed); } catch (Exception e) { notifyError("Encountered error while randomizing classes.\n\n" + e.getClass().getSimpleName() + "\n\nStack Trace:\n\n" + String.join("\n", Arrays.asList(e.getStackTrace()).stream().map(element -> (element.toString())).limit(5).collect(Collectors.toList()))); return; } 
@@ -198,22 +194,33 @@ public class GBARandomizer extends Randomizer {
 		
 		updateStatusString("Compiling changes...");
 		updateProgress(0.95);
+		diffCompiler.setActiveSource("Character Data");
 		charData.compileDiffs(diffCompiler);
+		diffCompiler.setActiveSource("Chapter Data");
 		chapterData.compileDiffs(diffCompiler);
+		diffCompiler.setActiveSource("Class Data");
 		classData.compileDiffs(diffCompiler);
+		diffCompiler.setActiveSource("Item Data");
 		itemData.compileDiffs(diffCompiler);
+		diffCompiler.setActiveSource("Palette Data");
 		paletteData.compileDiffs(diffCompiler);
+		diffCompiler.setActiveSource("Text");
 		textData.commitChanges(freeSpace, diffCompiler);
 		
 		if (gameType == GameType.FE8) {
+			diffCompiler.setActiveSource("FE8 Palette Mapper");
 			fe8_paletteMapper.commitChanges(diffCompiler);
+			diffCompiler.setActiveSource("FE8 Promotions");
 			fe8_promotionManager.compileDiffs(diffCompiler);
 			
 			fe8_summonerModule.validateSummoners(charData, new Random(SeedGenerator.generateSeedValue(seed, 0)));
+			diffCompiler.setActiveSource("FE8 Summoners");
 			fe8_summonerModule.commitChanges(diffCompiler, freeSpace);
 		}
 		
+		diffCompiler.setActiveSource("Free Space");
 		freeSpace.commitChanges(diffCompiler);
+		diffCompiler.setActiveSource(null);
 		
 		updateStatusString("Applying changes...");
 		updateProgress(0.99);
@@ -226,20 +233,6 @@ public class GBARandomizer extends Randomizer {
 			}
 		}
 		
-		handler.close();
-		handler = null;
-		
-		if (tempPath != null) {
-			updateStatusString("Cleaning up...");
-			File tempFile = new File(tempPath);
-			if (tempFile != null) { 
-				Boolean success = tempFile.delete();
-				if (!success) {
-					System.err.println("Failed to delete temp file.");
-				}
-			}
-		}
-		
 		FileHandler targetFileHandler = null;
 		try {
 			targetFileHandler = new FileHandler(targetPath);
@@ -253,6 +246,11 @@ public class GBARandomizer extends Randomizer {
 		itemData.recordWeapons(recordKeeper, false, classData, textData, targetFileHandler);
 		chapterData.recordChapters(recordKeeper, false, charData, classData, itemData, textData);
 		
+		// Text is loaded lazily from the source, so it has to stay open until everything's been recorded.
+		textData.finishLoading();
+		handler.close();
+		handler = null;
+		
 		recordKeeper.sortKeysInCategory(CharacterDataLoader.RecordKeeperCategoryKey);
 		recordKeeper.sortKeysInCategory(ClassDataLoader.RecordKeeperCategoryKey);
 		recordKeeper.sortKeysInCategory(ItemDataLoader.RecordKeeperCategoryWeaponKey);
@@ -296,26 +294,28 @@ public class GBARandomizer extends Randomizer {
 		updateStatusString("Detecting Free Space...");
 		updateProgress(0.02);
 		freeSpace = new FreeSpaceManager(FEBase.GameType.FE7, FE7Data.InternalFreeRange);
-		updateStatusString("Loading Text...");
+		freeSpace.deduplicateValues = true;
+		
+		updateStatusString("Loading Data...");
 		updateProgress(0.05);
-		textData = new TextLoader(FEBase.GameType.FE7, handler);
+		LoaderStage loaders = createLoaderStage(0.05, 0.30);
+		CompletableFuture<TextLoader> text = loaders.load("Text", () -> new TextLoader(FEBase.GameType.FE7, handler, true));
+		CompletableFuture<CharacterDataLoader> characters = loaders.load("Character Data", () -> new CharacterDataLoader(FE7Data.characterProvider, handler));
+		CompletableFuture<ClassDataLoader> classes = loaders.load("Class Data", () -> new ClassDataLoader(FE7Data.classProvider, handler));
+		CompletableFuture<ChapterLoader> chapters = loaders.load("Chapter Data", () -> new ChapterLoader(FEBase.GameType.FE7, handler));
+		CompletableFuture<ItemDataLoader> items = loaders.load("Item Data", () -> new ItemDataLoader(FE7Data.itemProvider, handler, freeSpace));
+		CompletableFuture<PaletteLoader> palettes = loaders.load("Palette Data", () -> new PaletteLoader(FEBase.GameType.FE7, handler, characters.join(), classes.join()), characters, classes);
+		loaders.await();
+		
+		textData = text.join();
 		textData.allowTextChanges = true;
+		charData = characters.join();
+		classData = classes.join();
+		chapterData = chapters.join();
+		itemData = items.join();
+		paletteData = palettes.join();
 		
-		updateStatusString("Loading Character Data...");
-		updateProgress(0.10);
-		charData = new CharacterDataLoader(FE7Data.characterProvider, handler);
-		updateStatusString("Loading Class Data...");
-		updateProgress(0.15);
-		classData = new ClassDataLoader(FE7Data.classProvider, handler);
-		updateStatusString("Loading Chapter Data...");
-		updateProgress(0.20);
-		chapterData = new ChapterLoader(FEBase.GameType.FE7, handler);
-		updateStatusString("Loading Item Data...");
-		updateProgress(0.25);
-		itemData = new ItemDataLoader(FE7Data.itemProvider, handler, freeSpace);
-		updateStatusString("Loading Palette Data...");
-		updateProgress(0.30);
-		paletteData = new PaletteLoader(FEBase.GameType.FE7, handler, charData, classData);
+		prefetchCommonText();
 		
 		handler.clearAppliedDiffs();
 	}
@@ -326,28 +326,30 @@ public class GBARandomizer extends Randomizer {
 		updateStatusString("Detecting Free Space...");
 		updateProgress(0.02);
 		freeSpace = new FreeSpaceManager(FEBase.GameType.FE6, FE6Data.InternalFreeRange);
-		updateStatusString("Loading Text...");
+		freeSpace.deduplicateValues = true;
+		
+		updateStatusString("Loading Data...");
 		updateProgress(0.05);
-		textData = new TextLoader(FEBase.GameType.FE6, handler);
+		LoaderStage loaders = createLoaderStage(0.05, 0.30);
+		CompletableFuture<TextLoader> text = loaders.load("Text", () -> new TextLoader(FEBase.GameType.FE6, handler, true));
+		CompletableFuture<CharacterDataLoader> characters = loaders.load("Character Data", () -> new CharacterDataLoader(FE6Data.characterProvider, handler));
+		CompletableFuture<ClassDataLoader> classes = loaders.load("Class Data", () -> new ClassDataLoader(FE6Data.classProvider, handler));
+		CompletableFuture<ChapterLoader> chapters = loaders.load("Chapter Data", () -> new ChapterLoader(FEBase.GameType.FE6, handler));
+		CompletableFuture<ItemDataLoader> items = loaders.load("Item Data", () -> new ItemDataLoader(FE6Data.itemProvider, handler, freeSpace));
+		CompletableFuture<PaletteLoader> palettes = loaders.load("Palette Data", () -> new PaletteLoader(FEBase.GameType.FE6, handler, characters.join(), classes.join()), characters, classes);
+		loaders.await();
+		
+		textData = text.join();
 		if (miscOptions.applyEnglishPatch) {
 			textData.allowTextChanges = true;
 		}
+		charData = characters.join();
+		classData = classes.join();
+		chapterData = chapters.join();
+		itemData = items.join();
+		paletteData = palettes.join();
 		
-		updateStatusString("Loading Character Data...");
-		updateProgress(0.10);
-		charData = new CharacterDataLoader(FE6Data.characterProvider, handler);
-		updateStatusString("Loading Class Data...");
-		updateProgress(0.15);
-		classData = new ClassDataLoader(FE6Data.classProvider, handler);
-		updateStatusString("Loading Chapter Data...");
-		updateProgress(0.20);
-		chapterData = new ChapterLoader(FEBase.GameType.FE6, handler);
-		updateStatusString("Loading Item Data...");
-		updateProgress(0.25);
-		itemData = new ItemDataLoader(FE6Data.itemProvider, handler, freeSpace);
-		updateStatusString("Loading Palette Data...");
-		updateProgress(0.30);
-		paletteData = new PaletteLoader(FEBase.GameType.FE6, handler, charData, classData);
+		prefetchCommonText();
 		
 		handler.clearAppliedDiffs();
 	}
@@ -358,43 +360,72 @@ public class GBARandomizer extends Randomizer {
 		updateStatusString("Detecting Free Space...");
 		updateProgress(0.02);
 		freeSpace = new FreeSpaceManager(FEBase.GameType.FE8, FE8Data.InternalFreeRange);
-		updateStatusString("Loading Text...");
-		updateProgress(0.04);
-		textData = new TextLoader(FEBase.GameType.FE8, handler);
-		textData.allowTextChanges = true;
-		
-		updateStatusString("Loading Promotion Data...");
-		updateProgress(0.06);
-		fe8_promotionManager = new FE8PromotionManager(handler);
-		
-		updateStatusString("Loading Character Data...");
-		updateProgress(0.10);
-		charData = new CharacterDataLoader(FE8Data.characterProvider, handler);
-		updateStatusString("Loading Class Data...");
-		updateProgress(0.15);
-		classData = new ClassDataLoader(FE8Data.classProvider, handler);
-		updateStatusString("Loading Chapter Data...");
-		updateProgress(0.20);
-		chapterData = new ChapterLoader(FEBase.GameType.FE8, handler);
-		updateStatusString("Loading Item Data...");
-		updateProgress(0.25);
-		itemData = new ItemDataLoader(FE8Data.itemProvider, handler, freeSpace);
-		updateStatusString("Loading Palette Data...");
-		updateProgress(0.30);
-		paletteData = new PaletteLoader(FEBase.GameType.FE8, handler, charData, classData);
+		freeSpace.deduplicateValues = true;
 		
-		updateStatusString("Loading Summoner Module...");
-		updateProgress(0.35);
-		fe8_summonerModule = new FE8SummonerModule(handler);
+		updateStatusString("Loading Data...");
+		updateProgress(0.04);
+		LoaderStage loaders = createLoaderStage(0.04, 0.40);
+		CompletableFuture<TextLoader> text = loaders.load("Text", () -> new TextLoader(FEBase.GameType.FE8, handler, true));
+		CompletableFuture<FE8PromotionManager> promotions = loaders.load("Promotion Data", () -> new FE8PromotionManager(handler));
+		CompletableFuture<CharacterDataLoader> characters = loaders.load("Character Data", () -> new CharacterDataLoader(FE8Data.characterProvider, handler));
+		CompletableFuture<ClassDataLoader> classes = loaders.load("Class Data", () -> new ClassDataLoader(FE8Data.classProvider, handler));
+		CompletableFuture<ChapterLoader> chapters = loaders.load("Chapter Data", () -> new ChapterLoader(FEBase.GameType.FE8, handler));
+		CompletableFuture<ItemDataLoader> items = loaders.load("Item Data", () -> new ItemDataLoader(FE8Data.itemProvider, handler, freeSpace));
+		CompletableFuture<PaletteLoader> palettes = loaders.load("Palette Data", () -> new PaletteLoader(FEBase.GameType.FE8, handler, characters.join(), classes.join()), characters, classes);
+		CompletableFuture<FE8SummonerModule> summoners = loaders.load("Summoner Module", () -> new FE8SummonerModule(handler));
+		CompletableFuture<FE8PaletteMapper> paletteMapper = loaders.load("Palette Mapper", () -> palettes.join().setupFE8SpecialManagers(handler, promotions.join()), palettes, promotions);
+		loaders.await();
 		
-		updateStatusString("Loading Palette Mapper...");
-		updateProgress(0.40);
-		fe8_paletteMapper = paletteData.setupFE8SpecialManagers(handler, fe8_promotionManager);
+		textData = text.join();
+		textData.allowTextChanges = true;
+		fe8_promotionManager = promotions.join();
+		charData = characters.join();
+		classData = classes.join();
+		chapterData = chapters.join();
+		itemData = items.join();
+		paletteData = palettes.join();
+		fe8_summonerModule = summoners.join();
+		fe8_paletteMapper = paletteMapper.join();
 		
+		prefetchCommonText();
 		
 		handler.clearAppliedDiffs();
 	}
 	
+	// Loaders only read from the ROM, so most of them can run at the same time. Progress goes from startProgress to endProgress as they finish.
+	private LoaderStage createLoaderStage(double startProgress, double endProgress) {
+		return new LoaderStage(new LoaderStage.ProgressListener() {
+			@Override
+			public void onLoaderFinished(String name, int finishedCount, int totalCount) {
+				updateStatusString("Loaded " + name + "...");
+				updateProgress(startProgress + (endProgress - startProgress) * finishedCount / totalCount);
+			}
+		});
+	}
+	
+	// Names and descriptions are read by pretty much every run (at the very least to build the change log), so start decoding them in the background.
+	private void prefetchCommonText() {
+		Set<Integer> indices = new LinkedHashSet<Integer>();
+		for (GBAFECharacterData character : charData.playableCharacters()) {
+			indices.add(character.getNameIndex());
+			indices.add(character.getDescriptionIndex());
+		}
+		for (GBAFECharacterData character : charData.bossCharacters()) {
+			indices.add(character.getNameIndex());
+			indices.add(character.getDescriptionIndex());
+		}
+		for (GBAFEClassData charClass : classData.allClasses()) {
+			indices.add(charClass.getNameIndex());
+			indices.add(charClass.getDescriptionIndex());
+		}
+		for (GBAFEItemData item : itemData.getAllWeapons()) {
+			indices.add(item.getNameIndex());
+			indices.add(item.getDescriptionIndex());
+			indices.add(item.getUseDescriptionIndex());
+		}
+		textData.prefetchStrings(indices);
+	}
+	
 	private void randomizeGrowthsIfNecessary(String seed) {
 		if (growths != null) {
 			Random rng = new Random(SeedGenerator.generateSeedValue(seed, GrowthsRandomizer.rngSalt));
@@ -588,7 +619,7 @@ public class GBARandomizer extends Randomizer {
 				}
 			}
 		}
-
+		
 		// For some reason, FE7's Emblem Bow has no effectiveness added to it.
 		if (gameType == GameType.FE7) {
 			GBAFEItemData emblemBow = itemData.itemWithID(FE7Data.Item.EMBLEM_BOW.ID);
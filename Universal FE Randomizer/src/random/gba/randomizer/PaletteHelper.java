@@ -8,7 +8,7 @@ import fedata.gba.general.PaletteInfo;
 import fedata.gba.general.PaletteV2;
 import fedata.gba.general.PaletteV2.PaletteType;
 import fedata.general.FEBase.GameType;
-import io.FileHandler;
+import io.RomImage;
 import random.gba.loader.CharacterDataLoader;
 import random.gba.loader.ClassDataLoader;
 import random.gba.loader.PaletteLoader;
@@ -55,7 +55,7 @@ public class PaletteHelper {
 		paletteData.flushChangeQueue(charData, freeSpace);
 	}
 	
-	public static void applyCharacterPaletteToSprite(GameType type, FileHandler handler, GBAFECharacterData character, int classID, PaletteLoader paletteData, FreeSpaceManager freeSpace, DiffCompiler compiler) {
+	public static void applyCharacterPaletteToSprite(GameType type, RomImage handler, GBAFECharacterData character, int classID, PaletteLoader paletteData, FreeSpaceManager freeSpace, DiffCompiler compiler) {
 		assert type == GameType.FE7 : "This method is only useful for FE7 at the moment.";
 		if (type != GameType.FE7) { return; }
 		
@@ -239,6 +239,9 @@ public class RecruitmentRandomizer {
 			// Build tokens for pattern
 			String patternString = "(" + patternStringFromReplacements(textReplacements) + ")";
 			Pattern pattern = Pattern.compile(patternString);
+			
+			// Every string gets looked at, so decode them all at once.
+			textData.decodeAllStrings();
 						
 			for (int i = 0; i < textData.getStringCount(); i++) {
 				String originalStringWithCodes = textData.getStringAtIndex(i, false);
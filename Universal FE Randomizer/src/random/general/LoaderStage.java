@@ -0,0 +1,81 @@
+package random.general;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Builds a set of loaders at the same time. Loaders that need other loaders wait for them to finish first.
+// Anything loaded this way has to be safe to run alongside the others (i.e. only reading from the ROM).
+public class LoaderStage {
+	
+	public interface ProgressListener {
+		public void onLoaderFinished(String name, int finishedCount, int totalCount);
+	}
+	
+	private static final int MaximumThreadCount = 4;
+	
+	private ExecutorService executor;
+	private ProgressListener listener;
+	
+	// Nothing starts until await is called, so that the total count is known by the time the first loader finishes.
+	private CompletableFuture<Void> started = new CompletableFuture<Void>();
+	
+	private List<CompletableFuture<?>> loaders = new ArrayList<CompletableFuture<?>>();
+	private AtomicInteger loaderCount = new AtomicInteger();
+	private AtomicInteger finishedCount = new AtomicInteger();
+	
+	public LoaderStage(ProgressListener listener) {
+		super();
+		this.listener = listener;
+		
+		int threadCount = Math.max(1, Math.min(MaximumThreadCount, Runtime.getRuntime().availableProcessors()));
+		executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+			private AtomicInteger threadCount = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Loader " + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	// Loads once the stage is started and everything in dependencies has finished.
+	public <T> CompletableFuture<T> load(String name, Supplier<T> loader, CompletableFuture<?>... dependencies) {
+		loaderCount.incrementAndGet();
+		CompletableFuture<?>[] waitingOn = Arrays.copyOf(dependencies, dependencies.length + 1);
+		waitingOn[dependencies.length] = started;
+		CompletableFuture<T> future = CompletableFuture.allOf(waitingOn).thenApplyAsync(ignored -> {
+			T result = loader.get();
+			if (listener != null) {
+				listener.onLoaderFinished(name, finishedCount.incrementAndGet(), loaderCount.get());
+			}
+			return result;
+		}, executor);
+		loaders.add(future);
+		return future;
+	}
+	
+	// Starts all of the loaders and waits for everything to finish. If any of the loaders threw, that exception is thrown from here.
+	// Nothing else can be loaded after this.
+	public void await() {
+		started.complete(null);
+		try {
+			CompletableFuture.allOf(loaders.toArray(new CompletableFuture<?>[loaders.size()])).join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) { throw (RuntimeException)cause; }
+			if (cause instanceof Error) { throw (Error)cause; }
+			throw e;
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -1,40 +1,84 @@
 package random.general;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
 public class PoolDistributor<T> {
 	
+	public enum RemovalOrder {
+		// Draws the same items as before for the same seed. Items stay in the order they were added, so taking one out shifts everything after it down.
+		// Counts and lookups are still O(1).
+		LEGACY,
+		// Taking an item out moves the last item into its place, so draws, removals and counts are all O(1).
+		// The sequence doesn't match LEGACY for the same seed.
+		SWAP_WITH_LAST
+	}
+	
+	private RemovalOrder removalOrder;
+	
 	List<T> itemList;
-	Set<T> itemSet;
+	Map<T, Integer> itemCounts; // Only has items with at least one instance in the pool.
+	
+	// SWAP_WITH_LAST only. Where each item's instances are in itemList, and where each instance is in that list.
+	Map<T, List<Integer>> itemIndices;
+	List<Integer> indexSlots;
 	
 	public PoolDistributor() {
+		this(RemovalOrder.LEGACY);
+	}
+	
+	public PoolDistributor(RemovalOrder removalOrder) {
+		this.removalOrder = removalOrder;
 		itemList = new ArrayList<T>();
-		itemSet = new HashSet<T>();
+		itemCounts = new HashMap<T, Integer>();
+		if (removalOrder == RemovalOrder.SWAP_WITH_LAST) {
+			itemIndices = new HashMap<T, List<Integer>>();
+			indexSlots = new ArrayList<Integer>();
+		}
 	}
 	
 	public void addItem(T item) {
 		addItem(item, 1);
 	}
-
+	
 	public void addItem(T item, int count) {
 		if (item == null) { return; }
-		itemList.add(item);
-		itemSet.add(item);
+		// LEGACY has only ever added one instance here, whatever the count.
+		if (removalOrder == RemovalOrder.LEGACY) { count = 1; }
+		for (int i = 0; i < count; i++) {
+			if (removalOrder == RemovalOrder.SWAP_WITH_LAST) {
+				List<Integer> indices = itemIndices.get(item);
+				if (indices == null) {
+					indices = new ArrayList<Integer>();
+					itemIndices.put(item, indices);
+				}
+				indexSlots.add(indices.size());
+				indices.add(itemList.size());
+			}
+			itemList.add(item);
+			itemCounts.merge(item, 1, Integer::sum);
+		}
 	}
 	
 	public void removeItem(T itemToRemove, boolean allInstances) {
 		if (itemToRemove == null) { return; }
-		if (allInstances) {
-			itemList.removeIf(item -> (item == itemToRemove));
-			itemSet.remove(itemToRemove);
+		if (removalOrder == RemovalOrder.SWAP_WITH_LAST) {
+			List<Integer> indices = itemIndices.get(itemToRemove);
+			while (indices != null && !indices.isEmpty()) {
+				removeAtIndex(indices.get(indices.size() - 1));
+				if (!allInstances) { break; }
+			}
+		} else if (allInstances) {
+			if (itemCounts.remove(itemToRemove) != null) {
+				itemList.removeIf(item -> (item == itemToRemove));
+			}
 		} else {
-			itemList.remove(itemToRemove);
-			if (!itemList.contains(itemToRemove)) {
-				itemSet.remove(itemToRemove);
+			if (itemList.remove(itemToRemove)) {
+				decrementCount(itemToRemove);
 			}
 		}
 	}
@@ -44,9 +88,11 @@ public class PoolDistributor<T> {
 		int randomIndex = rng.nextInt(itemList.size());
 		T randomItem = itemList.get(randomIndex);
 		if (removeItem) {
-			itemList.remove(randomIndex);
-			if (!itemList.contains(randomItem)) {
-				itemSet.remove(randomItem);
+			if (removalOrder == RemovalOrder.SWAP_WITH_LAST) {
+				removeAtIndex(randomIndex);
+			} else {
+				itemList.remove(randomIndex);
+				decrementCount(randomItem);
 			}
 		}
 		
@@ -55,10 +101,46 @@ public class PoolDistributor<T> {
 	
 	public int itemCount(T item) {
 		if (item == null) { return 0; }
-		return (int) itemList.stream().filter(listItem -> (listItem == item)).count();
+		Integer count = itemCounts.get(item);
+		return count != null ? count : 0;
 	}
 	
 	public Set<T> possibleResults() {
-		return itemSet;
+		return itemCounts.keySet();
+	}
+	
+	private void decrementCount(T item) {
+		int count = itemCounts.get(item);
+		if (count > 1) { itemCounts.put(item, count - 1); }
+		else { itemCounts.remove(item); }
+	}
+	
+	// Moves the last item into index and fixes up where it's tracked.
+	private void removeAtIndex(int index) {
+		T item = itemList.get(index);
+		int lastIndex = itemList.size() - 1;
+		
+		List<Integer> indices = itemIndices.get(item);
+		int slot = indexSlots.get(index);
+		int lastSlot = indices.size() - 1;
+		if (slot != lastSlot) {
+			int movedIndex = indices.get(lastSlot);
+			indices.set(slot, movedIndex);
+			indexSlots.set(movedIndex, slot);
+		}
+		indices.remove(lastSlot);
+		if (indices.isEmpty()) { itemIndices.remove(item); }
+		
+		if (index != lastIndex) {
+			T lastItem = itemList.get(lastIndex);
+			int lastItemSlot = indexSlots.get(lastIndex);
+			itemList.set(index, lastItem);
+			indexSlots.set(index, lastItemSlot);
+			itemIndices.get(lastItem).set(lastItemSlot, index);
+		}
+		itemList.remove(lastIndex);
+		indexSlots.remove(lastIndex);
+		
+		decrementCount(item);
 	}
 }
@@ -1,59 +1,203 @@
 package random.general;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
+// Keeps one entry per item (instead of one per point of weight), so large weights don't cost anything extra.
 public class WeightedDistributor<T> {
 	
-	List<T> itemList;
-	Set<T> itemSet;
+	public enum SamplingVersion {
+		// Draws the same items the original expanded list did for the same seed (one nextInt over the total weight, with items laid out in the order they were added).
+		// Draws and removals are O(log n).
+		V1,
+		// Alias table. Draws are O(1), but the RNG is used differently, so results don't match V1 for the same seed.
+		V2
+	}
+	
+	private class ItemEntry {
+		int weight;
+		List<Integer> runs = new ArrayList<Integer>(1); // Every addItem adds a run at the end, which is where the expanded list would have put it.
+		
+		ItemEntry copy() {
+			ItemEntry copy = new ItemEntry();
+			copy.weight = weight;
+			copy.runs.addAll(runs);
+			return copy;
+		}
+	}
+	
+	private SamplingVersion version;
+	
+	// Ordered so that V2 builds the same table every time.
+	private Map<T, ItemEntry> entries;
+	
+	// Runs are never taken out, only set to 0 weight when their item is removed.
+	private List<T> runItems;
+	private int[] runWeights;
+	private int[] runTree; // Fenwick tree over runWeights, 1-indexed.
+	private int runCount;
+	private int totalWeight;
+	
+	// Built the first time it's needed after anything changes (V2 only).
+	private List<T> aliasItems;
+	private long[] aliasThresholds;
+	private int[] aliasIndices;
 	
 	public WeightedDistributor() {
-		itemList = new ArrayList<T>();
-		itemSet = new HashSet<T>();
+		this(SamplingVersion.V1);
+	}
+	
+	public WeightedDistributor(SamplingVersion version) {
+		this.version = version;
+		entries = new LinkedHashMap<T, ItemEntry>();
+		runItems = new ArrayList<T>();
+		runWeights = new int[16];
+		runTree = new int[17];
 	}
 	
 	public WeightedDistributor(WeightedDistributor<T> original) {
-		itemList = new ArrayList<T>();
-		itemList.addAll(original.itemList);
+		version = original.version;
+		entries = new LinkedHashMap<T, ItemEntry>();
+		for (Map.Entry<T, ItemEntry> entry : original.entries.entrySet()) {
+			entries.put(entry.getKey(), entry.getValue().copy());
+		}
 		
-		itemSet = new HashSet<T>();
-		itemSet.addAll(original.itemSet);
+		runItems = new ArrayList<T>(original.runItems);
+		runWeights = original.runWeights.clone();
+		runTree = original.runTree.clone();
+		runCount = original.runCount;
+		totalWeight = original.totalWeight;
 	}
-
+	
 	public void addItem(T item, int weight) {
 		if (weight < 1 || item == null) { return; }
-		for (int i = 0 ; i < weight; i++) {
-			itemList.add(item);
+		
+		if (runCount == runWeights.length) {
+			runWeights = Arrays.copyOf(runWeights, runCount * 2);
+			rebuildRunTree();
+		}
+		
+		int run = runCount++;
+		runItems.add(item);
+		runWeights[run] = weight;
+		addToRunTree(run, weight);
+		totalWeight += weight;
+		
+		ItemEntry entry = entries.get(item);
+		if (entry == null) {
+			entry = new ItemEntry();
+			entries.put(item, entry);
 		}
-		itemSet.add(item);
+		entry.weight += weight;
+		entry.runs.add(run);
+		
+		aliasItems = null;
 	}
 	
 	public void removeItem(T itemToRemove) {
 		if (itemToRemove == null) { return; }
-		boolean didRemove = itemList.removeIf(item -> (item == itemToRemove));
-		if (didRemove) {
-			itemSet.remove(itemToRemove);
+		ItemEntry entry = entries.remove(itemToRemove);
+		if (entry == null) { return; }
+		
+		for (int run : entry.runs) {
+			addToRunTree(run, -runWeights[run]);
+			runWeights[run] = 0;
 		}
+		totalWeight -= entry.weight;
+		
+		aliasItems = null;
 	}
 	
 	public T getRandomItem(Random rng) {
-		if (itemList.isEmpty()) { return null; }
-		int randomIndex = rng.nextInt(itemList.size());
-		return itemList.get(randomIndex);
+		if (totalWeight == 0) { return null; }
+		
+		if (version == SamplingVersion.V2) {
+			if (aliasItems == null) { buildAliasTable(); }
+			int column = rng.nextInt(aliasItems.size());
+			return rng.nextInt(totalWeight) < aliasThresholds[column] ? aliasItems.get(column) : aliasItems.get(aliasIndices[column]);
+		}
+		
+		return runItems.get(findRun(rng.nextInt(totalWeight)));
 	}
 	
 	public Set<T> possibleResults() {
-		return itemSet;
+		return entries.keySet();
 	}
 	
 	public double chanceOfResult(T result) {
-		double denominator = itemList.size();
-		if (denominator == 0) { return 0; }
-		double numerator = itemList.stream().filter(item -> (item == result)).count();
-		return numerator / denominator;
+		if (totalWeight == 0) { return 0; }
+		ItemEntry entry = entries.get(result);
+		if (entry == null) { return 0; }
+		return (double)entry.weight / totalWeight;
+	}
+	
+	private void addToRunTree(int run, int delta) {
+		for (int i = run + 1; i < runTree.length; i += i & -i) {
+			runTree[i] += delta;
+		}
+	}
+	
+	private void rebuildRunTree() {
+		runTree = new int[runWeights.length + 1];
+		for (int i = 1; i <= runWeights.length; i++) {
+			runTree[i] += runWeights[i - 1];
+			int parent = i + (i & -i);
+			if (parent < runTree.length) {
+				runTree[parent] += runTree[i];
+			}
+		}
+	}
+	
+	// The run that position (0 to totalWeight - 1) falls in, as if every run were expanded out in order.
+	private int findRun(int position) {
+		int run = 0;
+		for (int step = Integer.highestOneBit(runTree.length - 1); step > 0; step >>= 1) {
+			int next = run + step;
+			if (next < runTree.length && runTree[next] <= position) {
+				run = next;
+				position -= runTree[next];
+			}
+		}
+		return run;
+	}
+	
+	// Vose's alias method, in integers. Each column is worth totalWeight, and its item takes up weight * columnCount of it.
+	private void buildAliasTable() {
+		int columnCount = entries.size();
+		aliasItems = new ArrayList<T>(entries.keySet());
+		aliasThresholds = new long[columnCount];
+		aliasIndices = new int[columnCount];
+		
+		int[] small = new int[columnCount];
+		int[] large = new int[columnCount];
+		int smallCount = 0;
+		int largeCount = 0;
+		
+		int column = 0;
+		for (ItemEntry entry : entries.values()) {
+			aliasThresholds[column] = (long)entry.weight * columnCount;
+			aliasIndices[column] = column;
+			if (aliasThresholds[column] < totalWeight) { small[smallCount++] = column; }
+			else { large[largeCount++] = column; }
+			column++;
+		}
+		
+		while (smallCount > 0 && largeCount > 0) {
+			int lessColumn = small[--smallCount];
+			int moreColumn = large[--largeCount];
+			aliasIndices[lessColumn] = moreColumn;
+			aliasThresholds[moreColumn] -= totalWeight - aliasThresholds[lessColumn];
+			if (aliasThresholds[moreColumn] < totalWeight) { small[smallCount++] = moreColumn; }
+			else { large[largeCount++] = moreColumn; }
+		}
+		
+		// Whatever's left is exactly full.
+		while (largeCount > 0) { aliasThresholds[large[--largeCount]] = totalWeight; }
+		while (smallCount > 0) { aliasThresholds[small[--smallCount]] = totalWeight; }
 	}
 }
@@ -14,7 +14,7 @@ import fedata.snes.fe4.FE4Data;
 import fedata.snes.fe4.FE4Data.EnemyTable;
 import fedata.snes.fe4.FE4EnemyCharacter;
 import fedata.snes.fe4.FE4StaticCharacter;
-import io.FileHandler;
+import io.RomImage;
 import util.DebugPrinter;
 import util.Diff;
 import util.DiffCompiler;
@@ -47,7 +47,7 @@ public class CharacterDataLoader {
 	
 	public static final String RecordKeeperSubcategoryHolyBoss = "Bosses with Holy Blood or Skills";
 	
-	public CharacterDataLoader(FileHandler handler, boolean headered) {
+	public CharacterDataLoader(RomImage handler, boolean headered) {
 		super();
 		
 		this.isHeadered = headered;
@@ -192,7 +192,7 @@ public class CharacterDataLoader {
 		return new ArrayList<FE4StaticCharacter>(holyBloodBossCharacters.values());
 	}
 	
-	private void initializeStaticPlayableCharacters(FileHandler handler) {
+	private void initializeStaticPlayableCharacters(RomImage handler) {
 		DebugPrinter.log(DebugPrinter.Key.FE4_CHARACTER_LOADER, "Loading Static Playable Characters...");
 		
 		staticPlayableCharacters = new HashMap<FE4Data.Character, FE4StaticCharacter>();
@@ -277,7 +277,7 @@ public class CharacterDataLoader {
 		DebugPrinter.log(DebugPrinter.Key.FE4_CHARACTER_LOADER, "Finished loading Static Playable Characters!");
 	}
 	
-	private void initializeChildCharacters(FileHandler handler) {
+	private void initializeChildCharacters(RomImage handler) {
 		DebugPrinter.log(DebugPrinter.Key.FE4_CHARACTER_LOADER, "Loading Child Playable Characters...");
 		
 		childCharacters = new HashMap<FE4Data.Character, FE4ChildCharacter>();
@@ -336,7 +336,7 @@ public class CharacterDataLoader {
 		DebugPrinter.log(DebugPrinter.Key.FE4_CHARACTER_LOADER, "Finished loading Child Playable Characters!");
 	}
 	
-	private void initializeEnemyAndArenaCharacters(FileHandler handler) {
+	private void initializeEnemyAndArenaCharacters(RomImage handler) {
 		DebugPrinter.log(DebugPrinter.Key.FE4_CHARACTER_LOADER, "Loading Minions and Arena Characters...");
 		
 		enemyCharacters = new HashMap<FE4Data.Character, FE4EnemyCharacter>();
@@ -376,7 +376,7 @@ public class CharacterDataLoader {
 		DebugPrinter.log(DebugPrinter.Key.FE4_CHARACTER_LOADER, "Finished loading Minions and Arena Characters!");
 	}
 	
-	private void initializeHolyBossCharacters(FileHandler handler) {
+	private void initializeHolyBossCharacters(RomImage handler) {
 		DebugPrinter.log(DebugPrinter.Key.FE4_CHARACTER_LOADER, "Loading Bosses with Holy Blood...");
 		
 		holyBloodBossCharacters = new HashMap<FE4Data.Character, FE4StaticCharacter>();
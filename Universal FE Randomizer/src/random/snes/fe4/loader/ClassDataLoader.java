@@ -7,7 +7,7 @@ import java.util.Map;
 
 import fedata.snes.fe4.FE4Class;
 import fedata.snes.fe4.FE4Data;
-import io.FileHandler;
+import io.RomImage;
 import util.Diff;
 import util.DiffCompiler;
 import util.recordkeeper.RecordKeeper;
@@ -19,7 +19,7 @@ public class ClassDataLoader {
 	
 	public static final String RecordKeeperCategoryKey = "Classes";
 	
-	public ClassDataLoader(FileHandler handler, boolean headered) {
+	public ClassDataLoader(RomImage handler, boolean headered) {
 		super();
 		
 		long baseOffset = FE4Data.ClassTableOffset;
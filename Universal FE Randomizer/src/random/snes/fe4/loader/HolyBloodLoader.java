@@ -7,7 +7,7 @@ import java.util.Map;
 
 import fedata.snes.fe4.FE4Data;
 import fedata.snes.fe4.FE4HolyBlood;
-import io.FileHandler;
+import io.RomImage;
 import util.Diff;
 import util.DiffCompiler;
 import util.recordkeeper.RecordKeeper;
@@ -20,7 +20,7 @@ public class HolyBloodLoader {
 	
 	public static final String RecordKeeperCategoryKey = "Holy Blood";
 	
-	public HolyBloodLoader(FileHandler handler, boolean headered) {
+	public HolyBloodLoader(RomImage handler, boolean headered) {
 		super();
 		
 		this.isHeadered = headered;
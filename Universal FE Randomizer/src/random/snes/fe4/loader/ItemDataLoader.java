@@ -5,7 +5,7 @@ import java.util.Map;
 
 import fedata.snes.fe4.FE4Data;
 import fedata.snes.fe4.FE4Weapon;
-import io.FileHandler;
+import io.RomImage;
 import util.Diff;
 import util.DiffCompiler;
 import util.recordkeeper.RecordKeeper;
@@ -16,7 +16,7 @@ public class ItemDataLoader {
 	
 	public static final String RecordKeeperCategoryKey = "Items";
 	
-	public ItemDataLoader(FileHandler handler, boolean headered) {
+	public ItemDataLoader(RomImage handler, boolean headered) {
 		super();
 		
 		long baseOffset = FE4Data.ItemTableOffset;
@@ -7,7 +7,7 @@ import java.util.Map;
 import java.util.Set;
 
 import fedata.snes.fe4.FE4Data;
-import io.FileHandler;
+import io.RomImage;
 import util.DebugPrinter;
 import util.Diff;
 import util.DiffCompiler;
@@ -24,7 +24,7 @@ public class ItemMapper {
 	
 	public static final String RecordKeeperCategoryKey = "Player Equipment";
 	
-	public ItemMapper(FileHandler handler, boolean isHeadered, List<Integer> freeIDs) {
+	public ItemMapper(RomImage handler, boolean isHeadered, List<Integer> freeIDs) {
 		super();
 		this.isHeadered = isHeadered;
 		freeInventoryIDs = freeIDs;
@@ -76,7 +76,7 @@ public class ItemMapper {
 		return indices;
 	}
 	
-	private void initializeMap(FileHandler handler) {
+	private void initializeMap(RomImage handler) {
 		DebugPrinter.log(DebugPrinter.Key.FE4_ITEM_MAPPER, "Reading item map...");
 		
 		playerEquipmentIDToItem = new HashMap<Integer, FE4Data.Item>();
@@ -9,7 +9,7 @@ import java.util.Set;
 import fedata.snes.fe4.FE4ChildCharacter;
 import fedata.snes.fe4.FE4Data;
 import fedata.snes.fe4.FE4StaticCharacter;
-import io.FileHandler;
+import io.RomImage;
 import util.Diff;
 import util.DiffCompiler;
 import util.recordkeeper.RecordKeeper;
@@ -20,7 +20,7 @@ public class PromotionMapper {
 	
 	private Map<FE4Data.Character, FE4Data.CharacterClass> promotions;
 	
-	public PromotionMapper(FileHandler handler, CharacterDataLoader charData, boolean isHeadered) {
+	public PromotionMapper(RomImage handler, CharacterDataLoader charData, boolean isHeadered) {
 		super();
 		this.isHeadered = isHeadered;
 		
@@ -40,7 +40,7 @@ public class PromotionMapper {
 		return promotions.keySet();
 	}
 
-	private void initializeMap(FileHandler handler, CharacterDataLoader charData) {
+	private void initializeMap(RomImage handler, CharacterDataLoader charData) {
 		promotions = new HashMap<FE4Data.Character, FE4Data.CharacterClass>();
 		
 		List<FE4StaticCharacter> staticCharacters = new ArrayList<FE4StaticCharacter>();
@@ -1,6 +1,5 @@
 package random.snes.fe4.randomizer;
 
-import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -20,6 +19,7 @@ import fedata.snes.fe4.FE4Data;
 import fedata.snes.fe4.FE4StaticCharacter;
 import io.DiffApplicator;
 import io.FileHandler;
+import io.RomImage;
 import io.UPSPatcher;
 import random.general.Randomizer;
 import random.general.WeightedDistributor;
@@ -71,7 +71,7 @@ public class FE4Randomizer extends Randomizer {
 	
 	private DiffCompiler diffCompiler;
 	
-	private FileHandler handler;
+	private RomImage handler;
 	
 	public FE4Randomizer(String sourcePath, boolean isHeadered, String targetPath, DiffCompiler diffs, GrowthOptions growthOptions, BaseOptions basesOptions, HolyBloodOptions bloodOptions, 
 			SkillsOptions skillOptions, FE4ClassOptions classOptions, FE4PromotionOptions promoOptions, FE4EnemyBuffOptions buffOptions, MiscellaneousOptions miscOptions, String seed) {
@@ -106,37 +106,28 @@ public class FE4Randomizer extends Randomizer {
 			return;
 		}
 		
-		String tempPath = null;
-		
 		// Apply patch first, if necessary.
 		if (miscOptions.applyEnglishPatch) {
 			updateStatusString("Applying English Patch...");
 			updateProgress(0.05);
 			
-			tempPath = new String(targetPath).concat(".tmp");
-			
-			Boolean success = false;
+			RomImage patchedHandler = null;
 			if (isHeadered) {
-				success = UPSPatcher.applyUPSPatch("FE4-Naga-Headered.ups", sourcePath, tempPath, null);
+				patchedHandler = UPSPatcher.applyUPSPatch("FE4-Naga-Headered.ups", handler, null);
 			} else {
-				success = UPSPatcher.applyUPSPatch("FE4-Naga-Unheadered.ups", sourcePath, tempPath, null);
-			}
-			if (!success) {
-				notifyError("Failed to apply translation patch.");
-				return;
+				patchedHandler = UPSPatcher.applyUPSPatch("FE4-Naga-Unheadered.ups", handler, null);
 			}
-			try {
-				handler = new FileHandler(tempPath);
-			} catch (IOException e1) {
-				System.err.println("Unable to open post-patched file.");
-				e1.printStackTrace();
+			if (patchedHandler == null) {
 				notifyError("Failed to apply translation patch.");
 				return;
 			}
+			handler.close();
+			handler = patchedHandler;
 		}
 		
 		updateStatusString("Loading Data...");
 		updateProgress(0.1);
+		diffCompiler.setActiveSource("Universal Diffs");
 		try { addUniversalDiffs(isHeadered); } catch (Exception e) { notifyError("Encountered error while applying universal diffs.\n\n" + e.getClass().getSimpleName() + "\n\nStack Trace:\n\n" + String.join("\n", Arrays.asList(e.getStackTrace()).stream().map(element -> (element.toString())).limit(5).collect(Collectors.toList()))); return; }
 		try { generateDataLoaders(); } catch (Exception e) { notifyError("Encountered error while generating data loaders.\n\n" + e.getClass().getSimpleName() + "\n\nStack Trace:\n\n" + String.join("\n", Arrays.asList(e.getStackTrace()).stream().map(element -> (element.toString())).limit(5).collect(Collectors.toList()))); return; }
 		
@@ -146,6 +137,7 @@ public class FE4Randomizer extends Randomizer {
 		try { makeInitialAdjustments(); } catch (Exception e) { notifyError("Encountered error while making initial adjustments.\n\n" + e.getClass().getSimpleName() + "\n\nStack Trace:\n\n" + String.join("\n", Arrays.asList(e.getStackTrace()).stream().map(element -> (element.toString())).limit(5).collect(Collectors.toList()))); return; }
 		
 		updateStatusString("Randomizing...");
+		diffCompiler.setActiveSource("Randomization");
 		try { randomizeClassesIfNecessary(seed); } catch (Exception e) { notifyError("Encountered error while randomizing classes.\n\n" + e.getClass().getSimpleName() + "\n\nStack Trace:\n\n" + String.join("\n", Arrays.asList(e.getStackTrace()).stream().map(element -> (element.toString())).limit(5).collect(Collectors.toList()))); return; }
 		updateProgress(0.40);
 		try { randomizeSkillsIfNecessary(seed); } catch (Exception e) { notifyError("Encountered error while randomizing skills.\n\n" + e.getClass().getSimpleName() + "\n\nStack Trace:\n\n" + String.join("\n", Arrays.asList(e.getStackTrace()).stream().map(element -> (element.toString())).limit(5).collect(Collectors.toList()))); return; }
@@ -167,12 +159,19 @@ public class FE4Randomizer extends Randomizer {
 		
 		updateStatusString("Compiling changes...");
 		updateProgress(0.95);
+		diffCompiler.setActiveSource("Character Data");
 		charData.compileDiffs(diffCompiler);
+		diffCompiler.setActiveSource("Item Map");
 		itemMapper.compileDiff(diffCompiler);
+		diffCompiler.setActiveSource("Holy Blood Data");
 		bloodData.compileDiffs(diffCompiler);
+		diffCompiler.setActiveSource("Promotion Map");
 		promotionMapper.compileDiff(diffCompiler);
+		diffCompiler.setActiveSource("Item Data");
 		itemData.compileDiffs(diffCompiler);
+		diffCompiler.setActiveSource("Class Data");
 		classData.compileDiffs(diffCompiler);
+		diffCompiler.setActiveSource(null);
 		
 		updateStatusString("Applying changes...");
 		updateProgress(0.99);
@@ -188,17 +187,6 @@ public class FE4Randomizer extends Randomizer {
 		handler.close();
 		handler = null;
 		
-		if (tempPath != null) {
-			updateStatusString("Cleaning up...");
-			File tempFile = new File(tempPath);
-			if (tempFile != null) { 
-				Boolean success = tempFile.delete();
-				if (!success) {
-					System.err.println("Failed to delete temp file.");
-				}
-			}
-		}
-		
 		charData.registerInventories(itemMapper);
 		// Register shop items.
 		for (FE4Data.ShopItem shopItem : FE4Data.ShopItems) {
@@ -827,6 +827,8 @@ public class MainView implements FileFlowDelegate {
 			} 
 			
 			romInfoGroup.setVisible(true);
+			
+			handler.close();
 		} catch (FileNotFoundException e) {
 			// TODO Auto-generated catch block
 			System.err.println("Failed to load file for reading.");
@@ -6,6 +6,8 @@ public class Diff {
 	public byte[] changes;
 	public byte[] requiredOldValues;
 	
+	public String source; // Which part of the randomizer added this diff. Only used for reporting.
+	
 	public Diff(long address, int length, byte[] changes, byte[] requiredOldValues) {
 		super();
 		this.address = address;
@@ -13,4 +15,9 @@ public class Diff {
 		this.changes = changes;
 		this.requiredOldValues = requiredOldValues;
 	}
+	
+	public Diff(long address, int length, byte[] changes, byte[] requiredOldValues, String source) {
+		this(address, length, changes, requiredOldValues);
+		this.source = source;
+	}
 }
@@ -1,67 +1,302 @@
 package util;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
 
-import io.DiffApplicator;
+import io.DiffResourceConverter;
 
 public class DiffCompiler {
 	
 	public final ArrayList<Diff> diffArray;
 	
+	// A flattened, read-only view of diffArray used when diffs are overlaid on top of reads.
+	// Segments are sorted and non-overlapping. Where diffs overlap, the one added last wins.
+	private static class OverlayIndex {
+		final int diffCount;
+		final long[] starts;
+		final long[] ends;
+		final byte[][] values;
+		
+		private OverlayIndex(int diffCount, TreeMap<Long, byte[]> segments) {
+			this.diffCount = diffCount;
+			starts = new long[segments.size()];
+			ends = new long[segments.size()];
+			values = new byte[segments.size()][];
+			int i = 0;
+			for (Map.Entry<Long, byte[]> entry : segments.entrySet()) {
+				starts[i] = entry.getKey();
+				ends[i] = entry.getKey() + entry.getValue().length;
+				values[i] = entry.getValue();
+				i++;
+			}
+		}
+		
+		// Index of the first segment that ends after the given address.
+		private int firstSegmentEndingAfter(long address) {
+			int low = 0;
+			int high = starts.length - 1;
+			int floor = -1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (starts[mid] <= address) {
+					floor = mid;
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+			
+			if (floor >= 0 && ends[floor] > address) { return floor; }
+			return floor + 1;
+		}
+	}
+	
+	private String activeSource;
+	
+	private TreeMap<Long, byte[]> resolvedSegments;
+	private int resolvedDiffCount;
+	private volatile OverlayIndex overlayIndex;
+	
 	public DiffCompiler() {
 		super();
 		
 		diffArray = new ArrayList<>();
 	}
 	
+	// A copy of the diffs added so far. Reading through it won't see anything added to this one afterwards.
+	// Adding diffs (and compacting) holds the same lock, so this can be taken while another thread is adding diffs. Reading diffArray directly isn't covered by that.
+	public DiffCompiler snapshot() {
+		DiffCompiler snapshot = new DiffCompiler();
+		synchronized (this) {
+			snapshot.diffArray.addAll(diffArray);
+		}
+		snapshot.overlayIndex = snapshot.currentOverlayIndex();
+		return snapshot;
+	}
+	
 	public void addDiffsFromFile(String diffName) throws IOException {
 		addDiffsFromFile(diffName, 0);
 	}
 	
 	public void addDiffsFromFile(String diffName, long addressOffset) throws IOException {
-		InputStream stream = DiffApplicator.class.getClassLoader().getResourceAsStream(diffName + ".diff");
-		BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(stream));
-		String currentLine = bufferedReader.readLine();
-		while(currentLine != null) {
-			Scanner scanner = new Scanner(currentLine);
-			scanner.useDelimiter("[\\s\\W]+");
-			long nextAddress = scanner.nextLong(16);
-			int existingValue = scanner.nextInt(16);
-			int newValue = scanner.nextInt(16);
+		List<Diff> diffs = DiffResourceConverter.loadDiffResource(diffName);
+		
+		// All at once, so that a snapshot never has only part of the file.
+		synchronized (this) {
+			for (Diff diff : diffs) {
+				diff.address += addressOffset;
+				diff.source = diffName;
+				addDiff(diff);
+			}
+		}
+	}
+	
+	// Diffs added while this is set (and that don't already have a source) are tagged with it.
+	public void setActiveSource(String source) {
+		activeSource = source;
+	}
+	
+	public synchronized void addDiff(Diff newDiff) {
+		if (newDiff.source == null) { newDiff.source = activeSource; }
+		diffArray.add(newDiff);
+	}
+	
+	// Merges adjacent and overlapping diffs into contiguous runs, leaving diffArray sorted by address.
+	// Overlapping diffs keep their original precedence (the one added last wins). Overlapping diffs that
+	// have required old values are left alone (in their original order), since each of their checks depends on the ones before it.
+	// Diffs with required old values are never joined to their neighbors, so a failed check only skips that diff, same as before.
+	// Returns a description of every overlap between diffs from different sources.
+	public synchronized List<String> compact() {
+		List<String> conflicts = new ArrayList<String>();
+		if (diffArray.size() < 2) { return conflicts; }
+		
+		Integer[] order = new Integer[diffArray.size()];
+		for (int i = 0; i < order.length; i++) { order[i] = i; }
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer arg0, Integer arg1) {
+				int result = Long.compare(diffArray.get(arg0).address, diffArray.get(arg1).address);
+				return result != 0 ? result : Integer.compare(arg0, arg1);
+			}
+		});
+		
+		List<Diff> compacted = new ArrayList<Diff>();
+		int i = 0;
+		while (i < order.length) {
+			// Find everything that overlaps this diff (directly or through another diff).
+			Diff first = diffArray.get(order[i]);
+			long clusterStart = first.address;
+			long clusterEnd = first.address + extentOfDiff(first);
+			boolean canFlatten = first.requiredOldValues == null && first.length == first.changes.length;
+			int clusterEndIndex = i + 1;
+			while (clusterEndIndex < order.length && diffArray.get(order[clusterEndIndex]).address < clusterEnd) {
+				Diff member = diffArray.get(order[clusterEndIndex]);
+				clusterEnd = Math.max(clusterEnd, member.address + extentOfDiff(member));
+				canFlatten &= member.requiredOldValues == null && member.length == member.changes.length;
+				clusterEndIndex++;
+			}
+			
+			Integer[] clusterOrder = Arrays.copyOfRange(order, i, clusterEndIndex);
+			Arrays.sort(clusterOrder);
+			
+			if (clusterOrder.length > 1) {
+				for (int j = 0; j < clusterOrder.length; j++) {
+					Diff earlier = diffArray.get(clusterOrder[j]);
+					for (int k = j + 1; k < clusterOrder.length; k++) {
+						Diff later = diffArray.get(clusterOrder[k]);
+						if (!Objects.equals(earlier.source, later.source) && earlier.address < later.address + extentOfDiff(later) && later.address < earlier.address + extentOfDiff(earlier)) {
+							conflicts.add("0x" + Long.toHexString(later.address).toUpperCase() + " (" + extentOfDiff(later) + " bytes) from " + (later.source != null ? later.source : "Unknown") + 
+									" overwrites 0x" + Long.toHexString(earlier.address).toUpperCase() + " (" + extentOfDiff(earlier) + " bytes) from " + (earlier.source != null ? earlier.source : "Unknown"));
+						}
+					}
+				}
+			}
+			
+			if (clusterOrder.length == 1) {
+				appendCompactedDiff(compacted, first);
+			} else if (!canFlatten) {
+				for (int index : clusterOrder) {
+					compacted.add(diffArray.get(index));
+				}
+			} else {
+				byte[] changes = new byte[(int)(clusterEnd - clusterStart)];
+				String source = null;
+				for (int index : clusterOrder) {
+					Diff member = diffArray.get(index);
+					System.arraycopy(member.changes, 0, changes, (int)(member.address - clusterStart), member.changes.length);
+					source = member.source;
+				}
+				appendCompactedDiff(compacted, new Diff(clusterStart, changes.length, changes, null, source));
+			}
 			
-			addDiff(new Diff(nextAddress + addressOffset, 1, new byte[] {(byte)(newValue & 0xFF)}, new byte[] {(byte)(existingValue & 0xFF)}));
-			scanner.close();
-			currentLine = bufferedReader.readLine();
+			i = clusterEndIndex;
 		}
 		
-		stream.close();
+		DebugPrinter.log(DebugPrinter.Key.DIFF, "Compacted " + diffArray.size() + " diffs into " + compacted.size());
+		
+		diffArray.clear();
+		diffArray.addAll(compacted);
+		overlayIndex = null;
+		resolvedSegments = null;
+		
+		return conflicts;
 	}
 	
-	public void addDiff(Diff newDiff) {
-		diffArray.add(newDiff);
+	// Adds diff to the end of the list, joining it to the last diff if they're back to back and neither checks old values.
+	private void appendCompactedDiff(List<Diff> compacted, Diff diff) {
+		Diff last = compacted.isEmpty() ? null : compacted.get(compacted.size() - 1);
+		if (last != null && last.address + last.length == diff.address && 
+				isWellFormed(last) && isWellFormed(diff) && last.requiredOldValues == null && diff.requiredOldValues == null && Objects.equals(last.source, diff.source)) {
+			byte[] changes = Arrays.copyOf(last.changes, last.length + diff.length);
+			System.arraycopy(diff.changes, 0, changes, last.length, diff.length);
+			compacted.set(compacted.size() - 1, new Diff(last.address, changes.length, changes, null, last.source));
+		} else {
+			compacted.add(diff);
+		}
+	}
+	
+	private static boolean isWellFormed(Diff diff) {
+		return diff.length == diff.changes.length;
+	}
+	
+	private static int extentOfDiff(Diff diff) {
+		return Math.max(diff.length, diff.changes.length);
 	}
 	
 	public byte[] byteArrayWithDiffs(byte[] byteArray, long startingOffset) {
+		OverlayIndex index = currentOverlayIndex();
+		int segment = index.firstSegmentEndingAfter(startingOffset);
+		if (segment >= index.starts.length || index.starts[segment] >= startingOffset + byteArray.length) {
+			// Nothing to change.
+			return byteArray;
+		}
+		
 		byte[] resultByteArray = byteArray.clone();
-		AddressRange range = new AddressRange(startingOffset, startingOffset + byteArray.length);
+		applyDiffsToByteArray(index, segment, resultByteArray, 0, resultByteArray.length, startingOffset);
+		return resultByteArray;
+	}
+	
+	// Same as above, but modifies length bytes of byteArray (starting at arrayOffset) in place.
+	public void applyDiffsToByteArray(byte[] byteArray, int arrayOffset, int length, long startingOffset) {
+		OverlayIndex index = currentOverlayIndex();
+		applyDiffsToByteArray(index, index.firstSegmentEndingAfter(startingOffset), byteArray, arrayOffset, length, startingOffset);
+	}
+	
+	private void applyDiffsToByteArray(OverlayIndex index, int firstSegment, byte[] byteArray, int arrayOffset, int length, long startingOffset) {
+		long endingOffset = startingOffset + length;
+		for (int segment = firstSegment; segment < index.starts.length && index.starts[segment] < endingOffset; segment++) {
+			long copyStart = Math.max(startingOffset, index.starts[segment]);
+			long copyEnd = Math.min(endingOffset, index.ends[segment]);
+			System.arraycopy(index.values[segment], (int)(copyStart - index.starts[segment]), byteArray, arrayOffset + (int)(copyStart - startingOffset), (int)(copyEnd - copyStart));
+		}
+	}
+	
+	public byte byteWithDiffs(byte value, long offset) {
+		OverlayIndex index = currentOverlayIndex();
+		int segment = index.firstSegmentEndingAfter(offset);
+		if (segment < index.starts.length && index.starts[segment] <= offset) {
+			return index.values[segment][(int)(offset - index.starts[segment])];
+		}
 		
-		for (Diff diff : diffArray) {
-			if (range.contains(diff.address)) {
-				int offset = (int)(diff.address - startingOffset);
-				for (int i = 0; i < diff.length; i++) {
-					if (offset + i >= resultByteArray.length) {
-						break;
-					}
-					resultByteArray[offset + i] = diff.changes[i];
+		return value;
+	}
+	
+	private OverlayIndex currentOverlayIndex() {
+		OverlayIndex index = overlayIndex;
+		if (index != null && index.diffCount == diffArray.size()) { return index; }
+		
+		synchronized (this) {
+			if (overlayIndex == null || overlayIndex.diffCount != diffArray.size()) {
+				// Diffs are normally only ever appended, so only the new ones need to be resolved.
+				if (resolvedSegments == null || resolvedDiffCount > diffArray.size()) {
+					resolvedSegments = new TreeMap<Long, byte[]>();
+					resolvedDiffCount = 0;
+				}
+				for (; resolvedDiffCount < diffArray.size(); resolvedDiffCount++) {
+					resolveDiff(diffArray.get(resolvedDiffCount));
+				}
+				overlayIndex = new OverlayIndex(resolvedDiffCount, resolvedSegments);
+			}
+			return overlayIndex;
+		}
+	}
+	
+	private void resolveDiff(Diff diff) {
+		int length = Math.min(diff.length, diff.changes.length);
+		if (length <= 0) { return; }
+		long start = diff.address;
+		long end = start + length;
+		
+		// Trim whatever this diff overwrites, keeping the parts of older segments that stick out on either side.
+		Map.Entry<Long, byte[]> floor = resolvedSegments.lowerEntry(start);
+		if (floor != null) {
+			long floorEnd = floor.getKey() + floor.getValue().length;
+			if (floorEnd > start) {
+				byte[] oldValue = floor.getValue();
+				resolvedSegments.put(floor.getKey(), Arrays.copyOfRange(oldValue, 0, (int)(start - floor.getKey())));
+				if (floorEnd > end) {
+					resolvedSegments.put(end, Arrays.copyOfRange(oldValue, (int)(end - floor.getKey()), oldValue.length));
 				}
 			}
 		}
 		
-		return resultByteArray;
+		Map.Entry<Long, byte[]> overlapped = resolvedSegments.ceilingEntry(start);
+		while (overlapped != null && overlapped.getKey() < end) {
+			resolvedSegments.remove(overlapped.getKey());
+			long overlappedEnd = overlapped.getKey() + overlapped.getValue().length;
+			if (overlappedEnd > end) {
+				resolvedSegments.put(end, Arrays.copyOfRange(overlapped.getValue(), (int)(end - overlapped.getKey()), overlapped.getValue().length));
+				break;
+			}
+			overlapped = resolvedSegments.ceilingEntry(start);
+		}
+		
+		resolvedSegments.put(start, Arrays.copyOf(diff.changes, length));
 	}
 }
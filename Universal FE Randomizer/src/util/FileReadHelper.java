@@ -1,22 +1,25 @@
 package util;
 
-import io.FileHandler;
+import io.RomImage;
 
 public class FileReadHelper {
-
-	public static long readWord(FileHandler handler, long offset, Boolean isPointer) {
-		byte[] word = handler.readBytesAtOffset(offset, 4);
+	
+	public static long readWord(RomImage handler, long offset, Boolean isPointer) {
+		long word = handler.getU32(offset);
+		handler.setNextReadOffset(offset + 4);
 		return wordValue(word, isPointer);
 	}
 	
-	public static long readWord(FileHandler handler, Boolean isPointer) {
-		byte[] word = handler.continueReadingBytes(4);
+	public static long readWord(RomImage handler, Boolean isPointer) {
+		long offset = handler.getNextReadOffset();
+		long word = handler.getU32(offset);
+		handler.setNextReadOffset(offset + 4);
 		return wordValue(word, isPointer);
 	}
 	
 	
 	
-	public static long readBigEndianWord(FileHandler handler, long offset) {
+	public static long readBigEndianWord(RomImage handler, long offset) {
 		byte[] word = handler.readBytesAtOffset(offset, 4);
 		long result = 0;
 		result = word[0];
@@ -27,32 +30,23 @@ public class FileReadHelper {
 		return result;
 	}
 	
-	public static byte[] readBytesInRange(AddressRange range, FileHandler handler) {
+	public static byte[] readBytesInRange(AddressRange range, RomImage handler) {
 		return handler.readBytesAtOffset(range.start, (int)(range.end - range.start));
 	}
 	
-	public static int readSignedHalfWord(FileHandler handler, long offset) {
-		byte[] halfword = handler.readBytesAtOffset(offset, 2);
-		int result = 0;
-		result |= (halfword[0] & 0xFF);
-		result |= (((halfword[1] & 0xFF) << 8));
-		if ((halfword[1] & 0x80) != 0) {
-			result |= 0xFFFF0000;
-		}
-		
+	public static int readSignedHalfWord(RomImage handler, long offset) {
+		int result = handler.getS16(offset);
+		handler.setNextReadOffset(offset + 2);
 		return result;
 	}
 	
-	public static long readAddress(FileHandler handler, long offset) {
-		long address = readWord(handler, offset, true);
-		if (address >= 0x1000 && address <= 0x1FFFFFF) {
-			return address;
-		} else {
-			return -1;
-		}
+	public static long readAddress(RomImage handler, long offset) {
+		long address = handler.getGBAPointer(offset);
+		handler.setNextReadOffset(offset + 4);
+		return address;
 	}
 	
-	public static long readAddress(FileHandler handler) {
+	public static long readAddress(RomImage handler) {
 		long address = readWord(handler, true);
 		if (address >= 0x1000 && address <= 0x1FFFFFF) {
 			return address;
@@ -61,15 +55,7 @@ public class FileReadHelper {
 		}
 	}
 	
-	private static long wordValue(byte[] word, Boolean isPointer) {
-		long result = 0;
-		result |= (word[0] & 0xFF);
-		result |= ((word[1] << 8) & 0xFF00);
-		result |= ((word[2] << 16) & 0xFF0000);
-		result |= ((word[3] << 24) & 0xFF000000);
-		
-		result &= 0xFFFFFFFFL;
-		
+	private static long wordValue(long result, Boolean isPointer) {
 		if (isPointer) {
 			if (result > 0x8000000) {
 				result -= 0x8000000;
@@ -0,0 +1,112 @@
+package util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// Keeps track of free ranges of the ROM and hands them out, smallest range that fits first.
+// Ranges are kept sorted by start (so that freed ranges can be merged with their neighbors) and by length (to find the best fit).
+public class FreeRangeAllocator {
+	
+	private TreeMap<Long, Long> rangesByStart = new TreeMap<Long, Long>(); // Start -> End (exclusive)
+	private TreeSet<Long> rangesByLength = new TreeSet<Long>(); // (Length << 32) | Start
+	
+	private long totalAllocated = 0;
+	private long totalFreed = 0;
+	
+	public FreeRangeAllocator() {
+		super();
+	}
+	
+	public FreeRangeAllocator(Iterable<AddressRange> ranges) {
+		super();
+		for (AddressRange range : ranges) {
+			insertRange(range.start, range.end);
+		}
+	}
+	
+	// Returns the offset of length bytes that are now taken, or -1 if no range is big enough.
+	// If aligned is set, the offset is a multiple of 4.
+	public long allocate(int length, boolean aligned) {
+		for (Long key = rangesByLength.ceiling((long)length << 32); key != null; key = rangesByLength.higher(key)) {
+			long start = key & 0xFFFFFFFFL;
+			long end = rangesByStart.get(start);
+			long offset = aligned ? (start + 3) & ~0x3L : start;
+			if (offset + length > end) { continue; }
+			
+			removeRange(start, end);
+			if (offset > start) { addRange(start, offset); }
+			if (offset + length < end) { addRange(offset + length, end); }
+			
+			totalAllocated += length;
+			return offset;
+		}
+		
+		return -1;
+	}
+	
+	// Gives [start, end) back. It's merged with any free ranges it touches or overlaps.
+	public void free(long start, long end) {
+		if (end <= start) { return; }
+		totalFreed += end - start;
+		insertRange(start, end);
+	}
+	
+	private void insertRange(long start, long end) {
+		if (end <= start) { return; }
+		
+		Map.Entry<Long, Long> previous = rangesByStart.floorEntry(start);
+		if (previous != null && previous.getValue() >= start) {
+			start = previous.getKey();
+			end = Math.max(end, previous.getValue());
+			removeRange(previous.getKey(), previous.getValue());
+		}
+		
+		Map.Entry<Long, Long> next = rangesByStart.ceilingEntry(start);
+		while (next != null && next.getKey() <= end) {
+			end = Math.max(end, next.getValue());
+			removeRange(next.getKey(), next.getValue());
+			next = rangesByStart.ceilingEntry(start);
+		}
+		
+		addRange(start, end);
+	}
+	
+	private void addRange(long start, long end) {
+		rangesByStart.put(start, end);
+		rangesByLength.add(((end - start) << 32) | start);
+	}
+	
+	private void removeRange(long start, long end) {
+		rangesByStart.remove(start);
+		rangesByLength.remove(((end - start) << 32) | start);
+	}
+	
+	public int getRangeCount() {
+		return rangesByStart.size();
+	}
+	
+	public long getFreeLength() {
+		long total = 0;
+		for (Map.Entry<Long, Long> range : rangesByStart.entrySet()) {
+			total += range.getValue() - range.getKey();
+		}
+		return total;
+	}
+	
+	public long getLargestFreeLength() {
+		return rangesByLength.isEmpty() ? 0 : rangesByLength.last() >>> 32;
+	}
+	
+	// How much of the free space is outside of the largest range, from 0 (none) to 1.
+	public double getFragmentation() {
+		long free = getFreeLength();
+		if (free == 0) { return 0; }
+		return 1.0 - (double)getLargestFreeLength() / free;
+	}
+	
+	public String usageString() {
+		return String.format("%d bytes free in %d ranges (largest: %d bytes, fragmentation: %.1f%%), %d bytes allocated, %d bytes freed",
+				getFreeLength(), getRangeCount(), getLargestFreeLength(), getFragmentation() * 100, totalAllocated, totalFreed);
+	}
+}
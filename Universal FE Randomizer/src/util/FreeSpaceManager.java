@@ -1,9 +1,12 @@
 package util;
 
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
 
 import fedata.general.FEBase;
 
@@ -12,13 +15,32 @@ public class FreeSpaceManager {
 	private class AssignedSpace {
 		long offset;
 		byte[] value;
+		boolean isInternal;
+		int keyCount = 1; // More than one key can share the same space if deduplicateValues is on.
 	}
 	
+	// Anything past this doesn't fit on a cartridge.
+	private static final long MaximumROMSize = 0x2000000;
+	
 	Map<String, AssignedSpace> changes;
+	long startingFreeAddress;
 	long freeAddress;
 	
-	List<AddressRange> internalRanges;
-	List<Long> internalFreeAddress;
+	// Space inside the ROM's original size. internalSpace starts out with the game's known free ranges.
+	// reclaimedInternalSpace is anything given back below startingFreeAddress (i.e. data that was moved somewhere else).
+	FreeRangeAllocator internalSpace;
+	FreeRangeAllocator reclaimedInternalSpace;
+	
+	// Appended space (past startingFreeAddress) that was given back, either from values that were replaced or from padding for alignment.
+	// Only used for setValue, since it's not inside the ROM's original size.
+	FreeRangeAllocator reclaimedSpace;
+	
+	// If set, values identical to one that's already been set share its space instead of taking up more.
+	public Boolean deduplicateValues = false;
+	
+	Map<ByteBuffer, AssignedSpace> assignmentsByValue;
+	long deduplicatedByteCount = 0;
+	int deduplicatedValueCount = 0;
 	
 	public FreeSpaceManager(FEBase.GameType gameType, List<AddressRange> internalRanges) {
 		switch (gameType) {
@@ -33,79 +55,58 @@ public class FreeSpaceManager {
 			freeAddress = -1;
 			break;
 		}
+		startingFreeAddress = freeAddress;
 		changes = new HashMap<String, AssignedSpace>();
+		assignmentsByValue = new HashMap<ByteBuffer, AssignedSpace>();
 		
-		this.internalRanges = internalRanges;
-		this.internalFreeAddress = internalRanges.stream().map(range -> (range.start)).collect(Collectors.toList());
+		internalSpace = new FreeRangeAllocator(internalRanges);
+		reclaimedInternalSpace = new FreeRangeAllocator();
+		reclaimedSpace = new FreeRangeAllocator();
 	}
 	
+	// Space at the end of the ROM. The caller is responsible for writing to it.
 	public long reserveSpace(int length, String key, boolean byteAligned) {
-		long offset = freeAddress;
-		freeAddress += length;
-		DebugPrinter.log(DebugPrinter.Key.FREESPACE, "Reserving Space for " + key + " (" + Integer.toString(length) + " bytes) to offset 0x" + Long.toHexString(freeAddress));
+		long offset = appendSpace(length, byteAligned);
+		DebugPrinter.log(DebugPrinter.Key.FREESPACE, "Reserving Space for " + key + " (" + Integer.toString(length) + " bytes) to offset 0x" + Long.toHexString(offset));
 		return offset;
 	}
 	
+	// Space inside the ROM's original size. The caller is responsible for writing to it. Returns 0 if there's no room left.
 	public long reserveInternalSpace(int length, String key, boolean byteAligned) {
-		for (int i = 0; i < internalRanges.size(); i++) {
-			AddressRange range = internalRanges.get(i);
-			long internalAddress = internalFreeAddress.get(i);
-			if (byteAligned) {
-				while ((internalAddress & 0x3) != 0) {
-					internalAddress++;
-				}
-			}
-			long bytesRemaining = range.end - internalAddress;
-			if (bytesRemaining < length) {
-				continue;
-			}
-			
-			long offset = internalAddress;
-			
-			internalFreeAddress.remove(i);
-			internalAddress += length;
-			internalFreeAddress.add(i, internalAddress);
-			
-			return offset;
+		long offset = allocateInternalSpace(length, byteAligned);
+		if (offset == -1) {
+			System.err.println("Out of internal free space. Unable to reserve " + length + " bytes for " + key);
+			return 0;
 		}
 		
-		return 0;
+		DebugPrinter.log(DebugPrinter.Key.FREESPACE, "Reserving internal space for " + key + " (" + Integer.toString(length) + " bytes) to offset 0x" + Long.toHexString(offset));
+		return offset;
 	}
 	
 	// This is limited, so don't use this unless absolutely necessary.
 	public long setValueToInternalSpace(byte[] value, String key, boolean byteAligned) {
-		for (int i = 0; i < internalRanges.size(); i++) {
-			AddressRange range = internalRanges.get(i);
-			long internalAddress = internalFreeAddress.get(i);
-			long bytesRemaining = range.end - internalAddress;
-			if (byteAligned) {
-				while ((internalAddress & 0x3) != 0) {
-					internalAddress++;
-				}
-			}
-			if (bytesRemaining < value.length) {
-				continue;
-			}
-			AssignedSpace assignment = changes.get(key);
-			if (assignment != null) {
-				changes.remove(key);
-			}
-			
-			assignment = new AssignedSpace();
-			assignment.offset = internalAddress;
-			assignment.value = value.clone();
-			changes.put(key, assignment);
-			
-			DebugPrinter.log(DebugPrinter.Key.FREESPACE, "Assigning internal bytes with key " + key + " to offset 0x" + Long.toHexString(internalAddress));
-			
-			internalFreeAddress.remove(i);
-			internalAddress += value.length;
-			internalFreeAddress.add(i, internalAddress);
-			
-			return assignment.offset;
+		releaseKey(key);
+		
+		AssignedSpace existingAssignment = existingAssignment(value, byteAligned, true);
+		if (existingAssignment != null) {
+			return shareAssignment(existingAssignment, key);
 		}
 		
-		return 0;
+		long offset = allocateInternalSpace(value.length, byteAligned);
+		if (offset == -1) {
+			System.err.println("Out of internal free space. Unable to assign " + value.length + " bytes for " + key);
+			return 0;
+		}
+		
+		AssignedSpace assignment = new AssignedSpace();
+		assignment.offset = offset;
+		assignment.value = value.clone();
+		assignment.isInternal = true;
+		addAssignment(assignment, key);
+		
+		DebugPrinter.log(DebugPrinter.Key.FREESPACE, "Assigning internal bytes with key " + key + " to offset 0x" + Long.toHexString(offset));
+		
+		return assignment.offset;
 	}
 	
 	public long setValue(byte[] value, String key) {
@@ -113,28 +114,127 @@ public class FreeSpaceManager {
 	}
 	
 	public long setValue(byte[] value, String key, boolean byteAligned) {
-		AssignedSpace assignment = changes.get(key);
-		if (assignment != null) {
-			changes.remove(key);
+		releaseKey(key);
+		
+		AssignedSpace existingAssignment = existingAssignment(value, byteAligned, false);
+		if (existingAssignment != null) {
+			return shareAssignment(existingAssignment, key);
 		}
 		
-		assignment = new AssignedSpace();
-		if (byteAligned) {
-			while ((freeAddress & 0x3) != 0) {
-				freeAddress++;
-			}
+		// Reuse anything that's been given back before adding to the end of the ROM. Appended space goes first, since internal requests can't use it.
+		long offset = reclaimedSpace.allocate(value.length, byteAligned);
+		if (offset == -1) {
+			offset = reclaimedInternalSpace.allocate(value.length, byteAligned);
 		}
-		assignment.offset = freeAddress;
+		if (offset == -1) {
+			offset = appendSpace(value.length, byteAligned);
+		}
+		
+		AssignedSpace assignment = new AssignedSpace();
+		assignment.offset = offset;
 		assignment.value = value.clone();
-		changes.put(key, assignment);
+		addAssignment(assignment, key);
 		
-		DebugPrinter.log(DebugPrinter.Key.FREESPACE, "Assigning bytes with key " + key + " to offset 0x" + Long.toHexString(freeAddress));
+		DebugPrinter.log(DebugPrinter.Key.FREESPACE, "Assigning bytes with key " + key + " to offset 0x" + Long.toHexString(offset));
 		
-		freeAddress += value.length;
+		return assignment.offset;
+	}
+	
+	// Marks [offset, offset + length) as no longer used (i.e. the data there was moved), so that it can be used for something else.
+	// Only do this if nothing else could be pointing to it.
+	public void releaseSpace(long offset, int length, String reason) {
+		DebugPrinter.log(DebugPrinter.Key.FREESPACE, "Releasing " + length + " bytes at offset 0x" + Long.toHexString(offset) + " (" + reason + ")");
+		reclaim(offset, offset + length);
+	}
+	
+	// Gives [start, end) back to whichever pool it belongs in, splitting it if it crosses startingFreeAddress.
+	private void reclaim(long start, long end) {
+		if (start < startingFreeAddress) {
+			reclaimedInternalSpace.free(start, Math.min(end, startingFreeAddress));
+		}
+		if (end > startingFreeAddress) {
+			reclaimedSpace.free(Math.max(start, startingFreeAddress), end);
+		}
+	}
+	
+	// An assignment that already holds exactly value and can be used as is, or null if there isn't one (or deduplication is off).
+	private AssignedSpace existingAssignment(byte[] value, boolean byteAligned, boolean internalOnly) {
+		if (!deduplicateValues || value.length == 0) { return null; }
+		AssignedSpace assignment = assignmentsByValue.get(ByteBuffer.wrap(value));
+		if (assignment == null) { return null; }
+		if (byteAligned && (assignment.offset & 0x3) != 0) { return null; }
+		if (internalOnly && !assignment.isInternal) { return null; }
+		return assignment;
+	}
+	
+	private long shareAssignment(AssignedSpace assignment, String key) {
+		assignment.keyCount++;
+		changes.put(key, assignment);
+		deduplicatedByteCount += assignment.value.length;
+		deduplicatedValueCount++;
+		
+		DebugPrinter.log(DebugPrinter.Key.FREESPACE, "Key " + key + " shares " + assignment.value.length + " bytes at offset 0x" + Long.toHexString(assignment.offset));
 		
 		return assignment.offset;
 	}
 	
+	private void addAssignment(AssignedSpace assignment, String key) {
+		changes.put(key, assignment);
+		if (deduplicateValues && assignment.value.length > 0) {
+			// Internal space works for anything, so prefer sharing that.
+			ByteBuffer valueKey = ByteBuffer.wrap(assignment.value);
+			AssignedSpace existingAssignment = assignmentsByValue.get(valueKey);
+			if (existingAssignment == null || (assignment.isInternal && !existingAssignment.isInternal)) {
+				assignmentsByValue.put(valueKey, assignment);
+			}
+		}
+	}
+	
+	// Setting a value for a key that already has one replaces it, so the old space can go back into the pool.
+	// Space shared with other keys is kept until none of them are using it.
+	private void releaseKey(String key) {
+		AssignedSpace assignment = changes.remove(key);
+		if (assignment == null) { return; }
+		if (--assignment.keyCount > 0) {
+			deduplicatedByteCount -= assignment.value.length;
+			deduplicatedValueCount--;
+			return;
+		}
+		
+		ByteBuffer valueKey = ByteBuffer.wrap(assignment.value);
+		if (assignmentsByValue.get(valueKey) == assignment) {
+			assignmentsByValue.remove(valueKey);
+		}
+		
+		if (assignment.isInternal) {
+			internalSpace.free(assignment.offset, assignment.offset + assignment.value.length);
+		} else if (assignment.offset + assignment.value.length == freeAddress) {
+			freeAddress = assignment.offset;
+		} else {
+			reclaim(assignment.offset, assignment.offset + assignment.value.length);
+		}
+	}
+	
+	private long allocateInternalSpace(int length, boolean byteAligned) {
+		long offset = internalSpace.allocate(length, byteAligned);
+		if (offset == -1) {
+			offset = reclaimedInternalSpace.allocate(length, byteAligned);
+		}
+		return offset;
+	}
+	
+	private long appendSpace(int length, boolean byteAligned) {
+		if (byteAligned && (freeAddress & 0x3) != 0) {
+			long alignedAddress = (freeAddress + 3) & ~0x3L;
+			reclaimedSpace.free(freeAddress, alignedAddress);
+			freeAddress = alignedAddress;
+		}
+		
+		long offset = freeAddress;
+		freeAddress += length;
+		return offset;
+	}
+	
 	public Boolean hasOffsetForKey(String key) {
 		return changes.containsKey(key);
 	}
@@ -150,12 +250,32 @@ public class FreeSpaceManager {
 		if (assignment != null) { return assignment.value; }
 		return null;
 	}
-
+	
+	public String usageReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Appended: " + (freeAddress - startingFreeAddress) + " bytes (ROM ends at 0x" + Long.toHexString(freeAddress) + ")\n");
+		sb.append("Internal: " + internalSpace.usageString() + "\n");
+		sb.append("Reclaimed Internal: " + reclaimedInternalSpace.usageString() + "\n");
+		sb.append("Reclaimed Appended: " + reclaimedSpace.usageString());
+		if (deduplicateValues) {
+			sb.append("\nDeduplicated: " + deduplicatedValueCount + " values, saving " + deduplicatedByteCount + " bytes");
+		}
+		return sb.toString();
+	}
+	
 	public void commitChanges(DiffCompiler compiler) {
+		// Shared space only needs to be written once.
+		Set<AssignedSpace> committedAssignments = Collections.newSetFromMap(new IdentityHashMap<AssignedSpace, Boolean>());
 		for (String key : changes.keySet()) {
 			AssignedSpace assignment = changes.get(key);
+			if (!committedAssignments.add(assignment)) { continue; }
 			DebugPrinter.log(DebugPrinter.Key.FREESPACE, "Commiting values " + WhyDoesJavaNotHaveThese.displayStringForBytes(assignment.value) + " to offset 0x" + Long.toHexString(assignment.offset) + " Key = " + key);
 			compiler.addDiff(new Diff(assignment.offset, assignment.value.length, assignment.value, null));
 		}
+		
+		DebugPrinter.log(DebugPrinter.Key.FREESPACE, "Free space usage:\n" + usageReport());
+		if (freeAddress > MaximumROMSize) {
+			System.err.println("ROM is larger than 32 MB (ends at 0x" + Long.toHexString(freeAddress) + ").");
+		}
 	}
 }
@@ -1,479 +1,527 @@
 package util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import fedata.general.FEBase;
-import io.FileHandler;
+import io.RomImage;
 
 public class HuffmanHelper {
 	
-	private class Bitstream {
-		private List<Integer> stream;
+	// Bits packed into longs, in the order they're written (first bit in the LSB), which is also the order they end up in the ROM.
+	private static class Bitstream {
+		private long[] words;
+		private int length;
 		
 		public Bitstream() {
-			stream = new ArrayList<Integer>();
+			words = new long[8];
+			length = 0;
 		}
 		
-		public Bitstream(Bitstream previousStream) {
-			stream = new ArrayList<Integer>(previousStream.stream);
+		// Appends the lowest bitCount bits of bits (up to 64).
+		public void append(long bits, int bitCount) {
+			if (bitCount == 0) { return; }
+			int lastWordIndex = (length + bitCount - 1) >> 6;
+			if (lastWordIndex >= words.length) {
+				words = Arrays.copyOf(words, Math.max(words.length * 2, lastWordIndex + 1));
+			}
+			
+			if (bitCount < 64) { bits &= (1L << bitCount) - 1; }
+			int wordIndex = length >> 6;
+			int bitIndex = length & 63;
+			words[wordIndex] |= bits << bitIndex;
+			if (bitIndex != 0 && bitIndex + bitCount > 64) {
+				words[wordIndex + 1] |= bits >>> (64 - bitIndex);
+			}
+			length += bitCount;
 		}
 		
-		public void pushZero() {
-			stream.add(0);
+		private long bitsAt(int position, int bitCount) {
+			int wordIndex = position >> 6;
+			int bitIndex = position & 63;
+			long bits = words[wordIndex] >>> bitIndex;
+			if (bitIndex != 0 && bitIndex + bitCount > 64) {
+				bits |= words[wordIndex + 1] << (64 - bitIndex);
+			}
+			return bitCount < 64 ? bits & ((1L << bitCount) - 1) : bits;
 		}
 		
-		public void pushOne() {
-			stream.add(1);
+		public byte[] toByteArray() {
+			// There's always at least one byte more than the bits need (i.e. 8 bits take 2 bytes).
+			byte[] byteArray = new byte[length / 8 + 1];
+			int usedBytes = (length + 7) / 8;
+			for (int i = 0; i < usedBytes; i++) {
+				byteArray[i] = (byte)(words[i >> 3] >>> ((i & 7) * 8));
+			}
+			
+			return byteArray;
+		}
+		
+		public Boolean hasSuffix(long bits, int bitCount) {
+			if (bitCount > length) { return false; }
+			long mask = bitCount < 64 ? (1L << bitCount) - 1 : -1L;
+			return bitsAt(length - bitCount, bitCount) == (bits & mask);
 		}
 		
-		public String toString() {
+		public static String codeString(long bits, int bitCount) {
 			StringBuilder sb = new StringBuilder();
-			for (int i = 0; i < stream.size(); i++) {
-				sb.append(stream.get(i) == 0 ? '0' : '1');
+			for (int i = 0; i < bitCount; i++) {
+				sb.append(((bits >>> i) & 1) == 0 ? '0' : '1');
 			}
 			
 			return sb.toString();
 		}
+	}
+	
+	// The ROM's Huffman tree, read once and flattened into arrays.
+	// Node 0 is the root. Leaves have no children and store up to two bytes in leafValue (the low byte comes first).
+	private static class HuffmanTree {
+		private static final int TableBits = 10;
+		private static final int TableMask = (1 << TableBits) - 1;
 		
-		public void appendStream(Bitstream otherStream) {
-			stream.addAll(otherStream.stream);
-		}
+		// Table entries are (node << 5) | (isLeaf ? 0x10 : 0) | bitsConsumed.
+		private static final int TableLeafFlag = 0x10;
+		private static final int TableLengthMask = 0xF;
 		
-		public byte[] toByteArray() {
-			byte[] byteArray = new byte[stream.size() / 8 + 1];
-			byte currentByte = 0;
-			int bit = 0;
-			int arrayCounter = 0;
-			for (int i = 0; i < stream.size(); i++) {
-				if (bit == 8) {
-					bit = 0;
-					byteArray[arrayCounter++] = currentByte;
-					currentByte = 0;
+		final long treeAddress;
+		final long rootAddress;
+		
+		final int[] leftChild; // -1 for leaves.
+		final int[] rightChild;
+		final int[] leafValue;
+		final int nodeCount;
+		
+		// Indexed by the next TableBits bits of input (first bit in the LSB).
+		// Gives the leaf those bits lead to, or the node to continue from if the code is longer than that.
+		final int[] lookupTable;
+		
+		private HuffmanTree(RomImage handler, long treeAddress, long rootAddress) {
+			this.treeAddress = treeAddress;
+			this.rootAddress = rootAddress;
+			
+			List<Long> nodeAddresses = new ArrayList<Long>();
+			Map<Long, Integer> indexForAddress = new HashMap<Long, Integer>();
+			nodeAddresses.add(rootAddress);
+			indexForAddress.put(rootAddress, 0);
+			
+			List<int[]> nodes = new ArrayList<int[]>(); // {left, right, value}
+			for (int i = 0; i < nodeAddresses.size(); i++) {
+				long address = nodeAddresses.get(i);
+				int left = handler.getS16(address);
+				int right = handler.getS16(address + 2);
+				if (right < 0) {
+					nodes.add(new int[] {-1, -1, left});
+					continue;
 				}
 				
-				currentByte |= (stream.get(i) << bit);
-				bit++;
+				int[] node = new int[] {0, 0, 0};
+				int[] offsets = new int[] {left, right};
+				for (int side = 0; side < 2; side++) {
+					long childAddress = treeAddress + 4 * offsets[side];
+					Integer childIndex = indexForAddress.get(childAddress);
+					if (childIndex == null) {
+						childIndex = nodeAddresses.size();
+						nodeAddresses.add(childAddress);
+						indexForAddress.put(childAddress, childIndex);
+					}
+					node[side] = childIndex;
+				}
+				nodes.add(node);
 			}
-			byteArray[arrayCounter] = currentByte;
 			
-			return byteArray;
-		}
-		
-		public Boolean hasSuffix(Bitstream suffix) {
-			int streamBase = stream.size() - suffix.stream.size();
-			if (streamBase < 0) { return false; }
-			for (int i = 0; i < suffix.stream.size(); i++) {
-				int index = streamBase + i;
-				if (suffix.stream.get(i) != stream.get(index)) {
-					return false;
+			nodeCount = nodes.size();
+			leftChild = new int[nodeCount];
+			rightChild = new int[nodeCount];
+			leafValue = new int[nodeCount];
+			for (int i = 0; i < nodeCount; i++) {
+				int[] node = nodes.get(i);
+				leftChild[i] = node[0];
+				rightChild[i] = node[1];
+				leafValue[i] = node[2];
+			}
+			
+			lookupTable = new int[1 << TableBits];
+			for (int bits = 0; bits < lookupTable.length; bits++) {
+				int node = 0;
+				int consumed = 0;
+				while (consumed < TableBits && !isLeaf(node)) {
+					node = ((bits >> consumed) & 1) == 0 ? leftChild[node] : rightChild[node];
+					consumed++;
 				}
+				lookupTable[bits] = (node << 5) | (isLeaf(node) ? TableLeafFlag : 0) | consumed;
 			}
 			
-			return true;
+			DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "Loaded Huffman tree with " + nodeCount + " nodes from 0x" + Long.toHexString(rootAddress));
 		}
-	}
-	
-	private class CacheEntry {
-		public Bitstream stream;
-		public Boolean hasValue1;
-		public Boolean hasValue2;
-		public byte value1;
-		public byte value2;
-		public Boolean isTerminal;
-		public long nodeValue;
-		
-		@SuppressWarnings("unused")
-		public CacheEntry parent;
-		public CacheEntry left;
-		public CacheEntry right;
-		public CacheEntry value;
 		
-		public CacheEntry(CacheEntry previousEntry) {
-			stream = new Bitstream(previousEntry.stream);
-			hasValue1 = false;
-			hasValue2 = false;
-			value1 = 0;
-			value2 = 0;
-			nodeValue = 0;
-			isTerminal = false;
-			
-			parent = previousEntry;
-			left = null;
-			right = null;
-			value = null;
+		private boolean isLeaf(int node) {
+			return leftChild[node] < 0;
 		}
-		
-		public CacheEntry() {
-			stream = new Bitstream();
-			hasValue1 = false;
-			hasValue2 = false;
-			value1 = 0;
-			value2 = 0;
-			nodeValue = 0;
-			isTerminal = false;
-			
-			parent = null;
-			left = null;
-			right = null;
-			value = null;
+	}
+	
+	// Strings are capped at this many bytes once decoded.
+	private static final int MaxDecodedLength = 0x1000;
+	
+	private static final int TrailingZeroCount = 2;
+	
+	// When a string isn't in the loaded text bank, this much is read from the ROM to decode it from (doubling if that's not enough).
+	private static final int DefaultReadLength = 0x400;
+	
+	private RomImage handler;
+	
+	// If set, strings outside the text bank are read with these diffs applied, instead of whatever the handler has applied at the time.
+	private DiffCompiler appliedDiffs;
+	
+	// Decoding only reads from this (and the text bank), neither of which change once loaded, so strings can be decoded from several threads at once.
+	// Encoding is not thread safe.
+	private volatile HuffmanTree tree;
+	
+	// A copy of the region of the ROM most text lives in, so that decoding doesn't need to go back to the handler.
+	private byte[] textBank;
+	private long textBankOffset;
+	
+	// Huffman codes are at most this long. Anything longer can't be encoded.
+	private static final int MaxCodeLength = 64;
+	
+	// Codes for each byte on its own, and for each pair of bytes (first byte in the upper 8 bits of the index).
+	// A length of 0 means there's no code for it. hasEncoderEntry tracks whether a byte shows up in any leaf at all.
+	private long[] singleCodes;
+	private byte[] singleCodeLengths;
+	private long[] pairCodes;
+	private byte[] pairCodeLengths;
+	private boolean[] hasEncoderEntry;
+	private Boolean staleEncoder = true;
+	private long terminatorCode;
+	private int terminatorCodeLength;
+	
+	public HuffmanHelper(RomImage handler) {
+		this.handler = handler;
+	}
+	
+	// Keeps reading the ROM as it is right now (with the diffs the handler has applied now), even after the handler's diffs are changed or cleared.
+	public void snapshotAppliedDiffs() {
+		DiffCompiler diffs = handler.getAppliedDiffs();
+		appliedDiffs = diffs != null ? diffs.snapshot() : new DiffCompiler();
+	}
+	
+	private void readBytes(long offset, byte[] destination) {
+		if (appliedDiffs == null) {
+			handler.getBytes(offset, destination, 0, destination.length);
+			return;
 		}
+		int length = handler.getRawBytes(offset, destination, 0, destination.length);
+		appliedDiffs.applyDiffsToByteArray(destination, 0, length, offset);
+	}
+	
+	// Converts a pointer from a text table to a file offset. Pointers with the MSB set (FE6) point to uncompressed text.
+	public static long offsetForTextAddress(long textAddress) {
+		long maskedAddress = textAddress & 0x7FFFFFFF;
+		if (maskedAddress > 0x08000000) { maskedAddress -= 0x8000000; }
+		return maskedAddress;
+	}
+	
+	// Reads [startOffset, endOffset) from the ROM in one go. Text within that range is decoded from this copy.
+	public void loadTextBank(long startOffset, long endOffset) {
+		startOffset = Math.max(0, startOffset);
+		endOffset = Math.min(endOffset, handler.getFileLength());
+		if (endOffset <= startOffset) { return; }
 		
-		public String getValueString() {
-			if (!hasValue1 && !hasValue2) { return null; }
-			StringBuilder sb = new StringBuilder();
-			if (hasValue1) {
-				if (value1 >= 0x20 && value1 <= 0x7E) { sb.append((char)value1); }
-				else { sb.append("0x" + Integer.toHexString(value1 & 0xFF)); }
-			}
-			if (hasValue2) {
-				sb.append(" ");
-				if (value2 >= 0x20 && value2 <= 0x7E) { sb.append((char)value2); }
-				else { sb.append("0x" + Integer.toHexString(value2 & 0xFF)); }
-			}
-			return sb.toString();
+		textBank = new byte[(int)(endOffset - startOffset)];
+		textBankOffset = startOffset;
+		int length = handler.getBytes(startOffset, textBank, 0, textBank.length);
+		if (length < textBank.length) {
+			textBank = Arrays.copyOf(textBank, length);
 		}
+		DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "Loaded text bank from 0x" + Long.toHexString(startOffset) + " to 0x" + Long.toHexString(startOffset + length));
 	}
 	
-	private class EncoderEntry {
-		public Bitstream stream;
-		
-		public Map<Character, EncoderEntry> followups;
+	// Reads the tree ahead of time. Otherwise, it's read the first time something is decoded with it.
+	public void loadTree(long treeAddress, long rootAddress) {
+		treeFor(treeAddress, rootAddress);
+	}
+	
+	private HuffmanTree treeFor(long treeAddress, long rootAddress) {
+		HuffmanTree currentTree = tree;
+		if (isTree(currentTree, treeAddress, rootAddress)) { return currentTree; }
 		
-		public EncoderEntry(Bitstream stream) {
-			if (stream != null) {
-				this.stream = new Bitstream(stream);
+		synchronized (this) {
+			currentTree = tree;
+			if (!isTree(currentTree, treeAddress, rootAddress)) {
+				currentTree = new HuffmanTree(handler, treeAddress, rootAddress);
+				tree = currentTree;
+				staleEncoder = true;
 			}
-			
-			followups = new HashMap<Character, EncoderEntry>();
+			return currentTree;
 		}
 	}
 	
-	private FileHandler handler;
-	private CacheEntry cacheRoot;
-	
-	private EncoderEntry[] encoder;
-	private Boolean staleEncoder = true;
-	private Bitstream terminatorBitstream;
-	
-	public HuffmanHelper(FileHandler handler) {
-		this.handler = handler;
-		cacheRoot = new CacheEntry();
+	private static boolean isTree(HuffmanTree tree, long treeAddress, long rootAddress) {
+		return tree != null && tree.treeAddress == treeAddress && tree.rootAddress == rootAddress;
 	}
 	
 	public void buildEncoder() {
 		if (!staleEncoder) { return; }
-		encoder = new EncoderEntry[0x100];
-		buildEncoderHelper(cacheRoot);
+		singleCodes = new long[0x100];
+		singleCodeLengths = new byte[0x100];
+		pairCodes = new long[0x10000];
+		pairCodeLengths = new byte[0x10000];
+		hasEncoderEntry = new boolean[0x100];
+		if (tree != null) {
+			buildEncoderHelper(0, 0, 0);
+		}
+		staleEncoder = false;
 	}
 	
-	private void buildEncoderHelper(CacheEntry root) {
-		if (root == null) { return; }
-		buildEncoderHelper(root.left);
-		if (root.value != null) {
-			if (root.value.hasValue1) {
-				int index = (root.value.value1 & 0xFF);
-				EncoderEntry entry = encoder[index];
-				if (entry == null) {
-					if (root.value.hasValue2) {
-						entry = new EncoderEntry(null);
-						encoder[index] = entry;
-						entry.followups.put((char)(root.value.value2 & 0xFF), new EncoderEntry(root.value.stream));
-					} else {
-						entry = new EncoderEntry(root.value.stream);
-						encoder[index] = entry;
-						DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "Writing stream " + root.value.stream.toString() + " to encoder index " + index);
-					}
-				} else {
-					if (root.value.hasValue2) {
-						entry.followups.put((char)(root.value.value2 & 0xFF), new EncoderEntry(root.value.stream));
-					} else {
-						if (entry.stream == null) {
-							entry.stream = new Bitstream(root.value.stream);
-							DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "Writing stream " + root.value.stream.toString() + " to encoder index " + index);
-						}
-					}
-				}
-			}
-			
-			if (root.value.value1 == 0x0) {
-				terminatorBitstream = root.value.stream;
-			}
-		} else {
-			if (root.hasValue1 || root.hasValue2) {
-				DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "Null Root has Value!");
+	// Visits the tree left, value, right, which is the order the encoder has always been built in.
+	// When a byte shows up more than once on its own, the first code wins. For pairs, the last one does.
+	private void buildEncoderHelper(int node, long code, int codeLength) {
+		if (!tree.isLeaf(node)) {
+			if (codeLength == MaxCodeLength) {
+				System.err.println("Huffman code is too long to encode. Skipping branch.");
+				return;
 			}
+			buildEncoderHelper(tree.leftChild[node], code, codeLength + 1);
+			buildEncoderHelper(tree.rightChild[node], code | (1L << codeLength), codeLength + 1);
+			return;
+		}
+		
+		int value = tree.leafValue[node];
+		int index = value & 0xFF;
+		hasEncoderEntry[index] = true;
+		if ((value & 0xFF00) != 0) {
+			int pairIndex = (index << 8) | ((value >> 8) & 0xFF);
+			pairCodes[pairIndex] = code;
+			pairCodeLengths[pairIndex] = (byte)codeLength;
+		} else if (singleCodeLengths[index] == 0) {
+			singleCodes[index] = code;
+			singleCodeLengths[index] = (byte)codeLength;
+			DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "Writing stream " + Bitstream.codeString(code, codeLength) + " to encoder index " + index);
+		}
+		
+		if (index == 0x0) {
+			terminatorCode = code;
+			terminatorCodeLength = codeLength;
 		}
-		buildEncoderHelper(root.right);
+	}
+	
+	private boolean appendPair(Bitstream stream, int first, int second) {
+		int pairIndex = (first << 8) | second;
+		if (pairCodeLengths[pairIndex] == 0) { return false; }
+		stream.append(pairCodes[pairIndex], pairCodeLengths[pairIndex]);
+		return true;
 	}
 	
 	public void printCache() {
-		DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "Printing Bitstream Cache:");
-		printCacheHelper(cacheRoot);
+		if (tree == null) { return; }
+		DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "Printing Huffman Codes:");
+		printCacheHelper(0, "");
+	}
+	
+	private void printCacheHelper(int node, String path) {
+		if (!tree.isLeaf(node)) {
+			printCacheHelper(tree.leftChild[node], path + "0");
+			printCacheHelper(tree.rightChild[node], path + "1");
+			return;
+		}
+		
+		DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "Bitstream: " + path + "\t\tValue: " + valueString(tree.leafValue[node]));
 	}
 	
-	private void printCacheHelper(CacheEntry root) {
-		if (root == null) { return; }
-		printCacheHelper(root.left);
-		if (root.value != null && root.value.getValueString() != null) {
-			DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "Bitstream: " + root.stream.toString() + "\t\tValue: " + root.value.getValueString());
+	private static String valueString(int leafValue) {
+		byte value1 = (byte)(leafValue & 0xFF);
+		StringBuilder sb = new StringBuilder();
+		if (value1 >= 0x20 && value1 <= 0x7E) { sb.append((char)value1); }
+		else { sb.append("0x" + Integer.toHexString(value1 & 0xFF)); }
+		if ((leafValue & 0xFF00) != 0) {
+			byte value2 = (byte)((leafValue >> 8) & 0xFF);
+			sb.append(" ");
+			if (value2 >= 0x20 && value2 <= 0x7E) { sb.append((char)value2); }
+			else { sb.append("0x" + Integer.toHexString(value2 & 0xFF)); }
 		}
-		printCacheHelper(root.right);
+		return sb.toString();
 	}
 	
 	public byte[] decodeDataArray(byte[] data, long treeAddress, long rootAddress, boolean isMarked) {
-		byte[] result = new byte[0x1000];
-		int i = 0;
+		if (isMarked) {
+			return copyUncompressedString(data, 0, data.length);
+		}
+		
+		return decode(treeFor(treeAddress, rootAddress), data, 0, data.length, true);
+	}
+	
+	// Returns the decoded string, including the terminator (and a couple of 0s after it).
+	public byte[] decodeTextAddressWithHuffmanTree(long textAddress, long treeAddress, long rootAddress) {
+		Boolean isMarked = (textAddress & 0x80000000) != 0;
+		long offset = offsetForTextAddress(textAddress);
+		if (offset < 0 || offset >= handler.getFileLength()) {
+			System.err.println("Text address 0x" + Long.toHexString(textAddress) + " is out of range.");
+			return new byte[] {0};
+		}
 		
-		int currentDataIndex = 0;
-		byte currentByte = 0;
+		HuffmanTree decodingTree = isMarked ? null : treeFor(treeAddress, rootAddress);
 		
-		if (isMarked) {
-			do {
-				currentByte = data[i];
-				result[i] = currentByte;
-				i++;
-			} while (currentByte != 0);
-			
-			return result;
-		} else {
-			int bit = 0;
-			long node = rootAddress;
-			currentByte = data[currentDataIndex++];
-			CacheEntry currentEntry = cacheRoot;
-			currentEntry.nodeValue = node;
-			while (i < 0x1000) {
-				CacheEntry leftEntry = currentEntry.left;
-				CacheEntry rightEntry = currentEntry.right;
-				
-				if (bit == 8) {
-					bit = 0;
-					currentByte = data[currentDataIndex++];
-				}
-				Boolean nextBitIsZero = (currentByte & 0x1) == 0;
-				if (currentEntry.value != null) {
-					result[i++] = currentEntry.value.value1;
-					//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "[cache] Wrote Byte 0x" + Integer.toHexString(currentEntry.value.value1));
-					if (currentEntry.value.hasValue2) {
-						result[i++] = currentEntry.value.value2;
-						//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "[cache] Wrote Byte 0x" + Integer.toHexString(currentEntry.value.value2));
-					} else if (currentEntry.value.isTerminal) {
-						//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "[cache] Terminal");
-						break;
-					}
-					node = rootAddress;
-					currentEntry = cacheRoot;
-					continue;
-				}
-				
-				if (nextBitIsZero && leftEntry != null) {
-					//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "[cache] 0 - left");
-					currentEntry = leftEntry;
-					node = leftEntry.nodeValue;
-					currentByte >>= 1;
-					bit += 1;
-					//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "[cache] node = 0x" + Long.toHexString(node));
-				} else if (!nextBitIsZero && rightEntry != null) {
-					//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "[cache] 1 - right");
-					currentEntry = rightEntry;
-					node = rightEntry.nodeValue;
-					currentByte >>= 1;
-					bit += 1;
-					//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "[cache] node = 0x" + Long.toHexString(node));
-				} else {
-					long currentTreeAddress = node;
-					int left = FileReadHelper.readSignedHalfWord(handler, currentTreeAddress);
-					currentTreeAddress += 2;
-					int right = FileReadHelper.readSignedHalfWord(handler, currentTreeAddress);
-					
-					Boolean rightReachedLeafMask = right < 0;
-					if (!rightReachedLeafMask) {
-						int offset;
-						if (nextBitIsZero) {
-							offset = left;
-							CacheEntry previousEntry = currentEntry;
-							currentEntry = new CacheEntry(previousEntry);
-							previousEntry.left = currentEntry;
-							currentEntry.stream.pushZero();
-							//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "0 - left");
-						}
-						else {
-							offset = right;
-							CacheEntry previousEntry = currentEntry;
-							currentEntry = new CacheEntry(previousEntry);
-							previousEntry.right = currentEntry;
-							currentEntry.stream.pushOne();
-							//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "1 - right");
-						}
-						
-						node = treeAddress + (4 * offset);
-						//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "node = 0x" + Long.toHexString(node));
-						currentEntry.nodeValue = node;
-						currentByte >>= 1;
-						bit += 1;
-					} else {
-						node = rootAddress;
-						result[i] = (byte) (left & 0xFF);
-						
-						CacheEntry valueEntry = new CacheEntry(currentEntry);
-						currentEntry.value = valueEntry;
-						
-						valueEntry.hasValue1 = true;
-						valueEntry.value1 = (byte) (left & 0xFF);
-						//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "Wrote Byte 0x" + Integer.toHexString(valueEntry.value1));
-						i += 1;
-						if ((left & 0xFF00) != 0) {
-							if (i != 0x1000) {
-								result[i] = (byte) ((left >> 8) & 0xFF);
-								valueEntry.hasValue2 = true;
-								valueEntry.value2 = (byte) ((left >> 8) & 0xFF);
-								//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "Wrote Byte 0x" + Integer.toHexString(valueEntry.value2));
-								i += 1;
-							}
-						} else if (left == 0) {
-							valueEntry.isTerminal = true;
-							//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "Terminal");
-							break;
-						}
-						currentEntry = cacheRoot;
-					}
-				}
+		// Try the text bank first. If the string isn't in there (or runs off the end of it), read it from the ROM instead.
+		if (textBank != null && offset >= textBankOffset && offset < textBankOffset + textBank.length) {
+			int start = (int)(offset - textBankOffset);
+			byte[] result = isMarked ? copyUncompressedString(textBank, start, textBank.length) : decode(decodingTree, textBank, start, textBank.length, false);
+			if (result != null) { return result; }
+		}
+		
+		int readLength = DefaultReadLength;
+		for (;;) {
+			boolean readsToEndOfFile = offset + readLength >= handler.getFileLength();
+			byte[] data = new byte[(int)Math.min(readLength, handler.getFileLength() - offset)];
+			readBytes(offset, data);
+			byte[] result = isMarked ? copyUncompressedString(data, 0, data.length) : decode(decodingTree, data, 0, data.length, readsToEndOfFile);
+			if (result != null || readsToEndOfFile) {
+				return result != null ? result : stringFromBytes(data, 0, Math.min(data.length, MaxDecodedLength));
 			}
+			readLength *= 2;
+		}
+	}
+	
+	// How many bytes the string at textAddress takes up in the ROM, including its terminator.
+	// Returns -1 if that can't be worked out (i.e. the string doesn't end before the maximum length or the end of the file).
+	public int storedLengthOfTextAddress(long textAddress, long treeAddress, long rootAddress) {
+		Boolean isMarked = (textAddress & 0x80000000) != 0;
+		long offset = offsetForTextAddress(textAddress);
+		if (offset < 0 || offset >= handler.getFileLength()) { return -1; }
+		
+		HuffmanTree decodingTree = isMarked ? null : treeFor(treeAddress, rootAddress);
+		
+		int readLength = DefaultReadLength;
+		for (;;) {
+			boolean readsToEndOfFile = offset + readLength >= handler.getFileLength();
+			byte[] data = new byte[(int)Math.min(readLength, handler.getFileLength() - offset)];
+			readBytes(offset, data);
+			int length = isMarked ? uncompressedLength(data) : encodedLength(decodingTree, data);
+			if (length != 0) { return length; }
+			if (readsToEndOfFile) { return -1; }
+			readLength *= 2;
+		}
+	}
+	
+	// Returns the length up to and including the first 0, 0 if data runs out first, or -1 if there's no 0 within the maximum length.
+	private static int uncompressedLength(byte[] data) {
+		int limit = Math.min(data.length, MaxDecodedLength);
+		for (int i = 0; i < limit; i++) {
+			if (data[i] == 0) { return i + 1; }
+		}
+		
+		return limit == MaxDecodedLength ? -1 : 0;
+	}
+	
+	// Same as above, but for Huffman encoded data. The length includes the byte the terminator's code ends in.
+	private static int encodedLength(HuffmanTree tree, byte[] data) {
+		int node = 0;
+		int decodedLength = 0;
+		for (int bit = 0; bit < data.length * 8; bit++) {
+			node = ((data[bit >> 3] >> (bit & 7)) & 1) == 0 ? tree.leftChild[node] : tree.rightChild[node];
+			if (!tree.isLeaf(node)) { continue; }
 			
-			return result;
+			int value = tree.leafValue[node];
+			if (value == 0) { return (bit >> 3) + 1; }
+			decodedLength += (value & 0xFF00) != 0 ? 2 : 1;
+			if (decodedLength >= MaxDecodedLength) { return -1; }
+			node = 0;
+		}
+		
+		return 0;
+	}
+	
+	// Copies bytes from data[start] up to and including the first 0.
+	// Returns null if data ends before the 0 (unless the string has already hit the maximum length).
+	private static byte[] copyUncompressedString(byte[] data, int start, int end) {
+		int limit = Math.min(end, start + MaxDecodedLength);
+		for (int i = start; i < limit; i++) {
+			if (data[i] == 0) {
+				return stringFromBytes(data, start, i + 1 - start);
+			}
 		}
+		
+		return limit - start == MaxDecodedLength ? stringFromBytes(data, start, MaxDecodedLength) : null;
 	}
-
-	public byte[] decodeTextAddressWithHuffmanTree(long textAddress, long treeAddress, long rootAddress) {
-		byte[] result = new byte[0x1000];
+	
+	// Some codes (i.e. [LoadFace]) are followed by arguments, and sanitizing them reads ahead without checking for the terminator.
+	// Leave a few 0s at the end so that the result looks the same as it did with a full size buffer.
+	// (A string that hit the maximum length doesn't get these, since the buffer would have been full.)
+	private static byte[] stringFromBytes(byte[] data, int start, int length) {
+		byte[] result = new byte[length < MaxDecodedLength ? length + TrailingZeroCount : length];
+		System.arraycopy(data, start, result, 0, length);
+		return result;
+	}
+	
+	// Decodes the Huffman encoded string at data[start] (bits are read starting from the LSB of each byte).
+	// If the input runs out before a terminator, this returns null, or if padWithZeroes is set, continues as if the rest of the input were 0s.
+	private static byte[] decode(HuffmanTree tree, byte[] data, int start, int end, boolean padWithZeroes) {
+		byte[] result = new byte[MaxDecodedLength];
 		int i = 0;
 		
-		Boolean isMarked = (textAddress & 0x80000000) != 0;
-		long maskedAddress = textAddress & 0x7FFFFFFF;
-		if (maskedAddress > 0x08000000) { maskedAddress -= 0x8000000; }
+		int[] lookupTable = tree.lookupTable;
+		int[] leftChild = tree.leftChild;
+		int[] rightChild = tree.rightChild;
+		int[] leafValue = tree.leafValue;
 		
-		byte currentByte = 0;
+		long bitBuffer = 0;
+		int bitCount = 0;
+		int position = start;
+		int paddingBits = 0; // How many of the bits in the buffer came from past the end.
 		
-		if (isMarked) {
-			do {
-				currentByte = handler.readBytesAtOffset(maskedAddress, 1)[0];
-				result[i] = currentByte;
-				i++;
-				maskedAddress += 1;
-			} while (currentByte != 0);
-			
-			return result;
-		} else {
-			staleEncoder = true;
-			int bit = 0;
-			long node = rootAddress;
-			currentByte = handler.readBytesAtOffset(maskedAddress, 1)[0];
-			long textDataPosition = maskedAddress + 1;
-			CacheEntry currentEntry = cacheRoot;
-			currentEntry.nodeValue = node;
-			while (i < 0x1000) {
-				CacheEntry leftEntry = currentEntry.left;
-				CacheEntry rightEntry = currentEntry.right;
-				
-				if (bit == 8) {
-					bit = 0;
-					currentByte = handler.readBytesAtOffset(textDataPosition, 1)[0];
-					textDataPosition += 1;
-				}
-				Boolean nextBitIsZero = (currentByte & 0x1) == 0;
-				if (currentEntry.value != null) {
-					result[i++] = currentEntry.value.value1;
-					//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "[cache] Wrote Byte 0x" + Integer.toHexString(currentEntry.value.value1));
-					if (currentEntry.value.hasValue2) {
-						result[i++] = currentEntry.value.value2;
-						//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "[cache] Wrote Byte 0x" + Integer.toHexString(currentEntry.value.value2));
-					} else if (currentEntry.value.isTerminal) {
-						//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "[cache] Terminal");
-						break;
-					}
-					node = rootAddress;
-					currentEntry = cacheRoot;
-					continue;
-				}
-				
-				if (nextBitIsZero && leftEntry != null) {
-					//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "[cache] 0 - left");
-					currentEntry = leftEntry;
-					node = leftEntry.nodeValue;
-					currentByte >>= 1;
-					bit += 1;
-					//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "[cache] node = 0x" + Long.toHexString(node));
-				} else if (!nextBitIsZero && rightEntry != null) {
-					//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "[cache] 1 - right");
-					currentEntry = rightEntry;
-					node = rightEntry.nodeValue;
-					currentByte >>= 1;
-					bit += 1;
-					//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "[cache] node = 0x" + Long.toHexString(node));
+		while (i < MaxDecodedLength) {
+			// Keep at least 56 bits around. Most codes are short enough that this means one refill every several characters.
+			while (bitCount <= 56) {
+				if (position < end) {
+					bitBuffer |= (long)(data[position] & 0xFF) << bitCount;
 				} else {
-					long currentTreeAddress = node;
-					int left = FileReadHelper.readSignedHalfWord(handler, currentTreeAddress);
-					currentTreeAddress += 2;
-					int right = FileReadHelper.readSignedHalfWord(handler, currentTreeAddress);
-					
-					Boolean rightReachedLeafMask = right < 0;
-					if (!rightReachedLeafMask) {
-						int offset;
-						if (nextBitIsZero) {
-							offset = left;
-							CacheEntry previousEntry = currentEntry;
-							currentEntry = new CacheEntry(previousEntry);
-							previousEntry.left = currentEntry;
-							currentEntry.stream.pushZero();
-							//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "0 - left");
-						}
-						else {
-							offset = right;
-							CacheEntry previousEntry = currentEntry;
-							currentEntry = new CacheEntry(previousEntry);
-							previousEntry.right = currentEntry;
-							currentEntry.stream.pushOne();
-							//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "1 - right");
-						}
-						
-						node = treeAddress + (4 * offset);
-						//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "node = 0x" + Long.toHexString(node));
-						currentEntry.nodeValue = node;
-						currentByte >>= 1;
-						bit += 1;
-					} else {
-						node = rootAddress;
-						result[i] = (byte) (left & 0xFF);
-						
-						CacheEntry valueEntry = new CacheEntry(currentEntry);
-						currentEntry.value = valueEntry;
-						
-						valueEntry.hasValue1 = true;
-						valueEntry.value1 = (byte) (left & 0xFF);
-						//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "Wrote Byte 0x" + Integer.toHexString(valueEntry.value1));
-						i += 1;
-						if ((left & 0xFF00) != 0) {
-							if (i != 0x1000) {
-								result[i] = (byte) ((left >> 8) & 0xFF);
-								valueEntry.hasValue2 = true;
-								valueEntry.value2 = (byte) ((left >> 8) & 0xFF);
-								//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "Wrote Byte 0x" + Integer.toHexString(valueEntry.value2));
-								i += 1;
-							}
-						} else if (left == 0) {
-							valueEntry.isTerminal = true;
-							//DebugPrinter.log(DebugPrinter.Key.HUFFMAN, "Terminal");
-							break;
+					paddingBits += 8;
+				}
+				position++;
+				bitCount += 8;
+			}
+			
+			int entry = lookupTable[(int)(bitBuffer & HuffmanTree.TableMask)];
+			int length = entry & HuffmanTree.TableLengthMask;
+			int node = entry >>> 5;
+			bitBuffer >>>= length;
+			bitCount -= length;
+			
+			if ((entry & HuffmanTree.TableLeafFlag) == 0) {
+				// Longer code than the table covers. Walk the rest of the way one bit at a time.
+				while (leftChild[node] >= 0) {
+					if (bitCount == 0) {
+						if (position < end) {
+							bitBuffer = data[position] & 0xFF;
+						} else {
+							bitBuffer = 0;
+							paddingBits += 8;
 						}
-						currentEntry = cacheRoot;
+						position++;
+						bitCount = 8;
 					}
+					node = (bitBuffer & 1) == 0 ? leftChild[node] : rightChild[node];
+					bitBuffer >>>= 1;
+					bitCount--;
 				}
 			}
+			
+			// Reading into the padding is only a problem if the bits were actually used.
+			if (!padWithZeroes && paddingBits > bitCount) { return null; }
+			
+			int value = leafValue[node];
+			result[i++] = (byte)(value & 0xFF);
+			if ((value & 0xFF00) != 0) {
+				if (i != MaxDecodedLength) {
+					result[i++] = (byte)((value >> 8) & 0xFF);
+				}
+			} else if (value == 0) {
+				break;
+			}
 		}
 		
-		return result;
+		return stringFromBytes(result, 0, i);
 	}
 	
 	public String sanitizeByteArrayIntoTextString(byte[] byteArray, Boolean squelchCodes, FEBase.GameType gameType) {
@@ -591,7 +639,8 @@ public class HuffmanHelper {
 	
 	private static class StringByteProvider {
 		int currentIndex;
-		List<Byte> byteArray = new ArrayList<Byte>();
+		byte[] byteArray;
+		int byteCount;
 		
 		private static Integer encoderIndexFromCodeString(String controlCode) {
 			if (controlCode.equals("X")) { return 0; } 
@@ -620,6 +669,8 @@ public class HuffmanHelper {
 		
 		private StringByteProvider(String string, boolean includesCodes) {
 			currentIndex = 0;
+			byteArray = new byte[string.length()];
+			byteCount = 0;
 			for (int i = 0; i < string.length(); i++) {
 				char character = string.charAt(i);
 				Integer encoderIndex = (int)character;
@@ -666,18 +717,20 @@ public class HuffmanHelper {
 					}
 				}
 				
-				byteArray.add((byte)(encoderIndex & 0xFF));
+				byteArray[byteCount++] = (byte)(encoderIndex & 0xFF);
 			}
 		}
 		
-		private Byte getCurrent() {
-			if (currentIndex >= byteArray.size()) { return null; }
-			return byteArray.get(currentIndex);
+		private byte getCurrent() {
+			return byteArray[currentIndex];
 		}
 		
-		private Byte peekNext() {
-			if (currentIndex + 1 >= byteArray.size()) { return null; }
-			return byteArray.get(currentIndex + 1);
+		private boolean hasNext() {
+			return currentIndex + 1 < byteCount;
+		}
+		
+		private byte peekNext() {
+			return byteArray[currentIndex + 1];
 		}
 		
 		private void advance() {
@@ -685,7 +738,7 @@ public class HuffmanHelper {
 		}
 		
 		private boolean hasData() {
-			return currentIndex < byteArray.size();
+			return currentIndex < byteCount;
 		}
 	}
 	
@@ -700,59 +753,52 @@ public class HuffmanHelper {
 		StringByteProvider provider = new StringByteProvider(string, includesCodes);
 		
 		while (provider.hasData()) {
-			Character encoderIndex = (char)((int)provider.getCurrent() & 0xFF);
+			int encoderIndex = provider.getCurrent() & 0xFF;
 			
-			if (encoderIndex < encoder.length) {
-				EncoderEntry entry = encoder[encoderIndex];
-				Character nextChar = provider.peekNext() != null ? (char)((int)provider.peekNext() & 0xFF) : null;
-				
-				if (nextChar == null) {
-					if (entry.stream != null) {
-						result.appendStream(entry.stream);
-					} else {
-						// Use a terminator.
-						if (entry.followups.get((char)0) != null) {
-							result.appendStream(entry.followups.get((char)0).stream);
-						} else if (entry.followups.get((char)0x1f) != null) { 
-							// Try the short pause.
-							result.appendStream(entry.followups.get((char)0x1f).stream);
-						} else {
-							assert false : "Unencodable string.";
-						}
+			if (!hasEncoderEntry[encoderIndex]) {
+				System.err.println("Unencodable character: 0x" + Integer.toHexString(encoderIndex));
+				provider.advance();
+				continue;
+			}
+			
+			boolean hasSingleCode = singleCodeLengths[encoderIndex] != 0;
+			
+			if (!provider.hasNext()) {
+				if (hasSingleCode) {
+					result.append(singleCodes[encoderIndex], singleCodeLengths[encoderIndex]);
+				} else {
+					// Use a terminator.
+					// Failing that, try the short pause.
+					if (!appendPair(result, encoderIndex, 0) && !appendPair(result, encoderIndex, 0x1f)) {
+						assert false : "Unencodable string.";
 					}
-					break;
 				}
-				
-				EncoderEntry followup = entry.followups.get(nextChar);
-				if (followup != null) {
-					result.appendStream(followup.stream);
-					provider.advance();
-				} else {
-					// ?[A] is apparently not a valid combo in the huffman table... (for FE7)
-					// Maybe we can use a space instead in this case.
-					// Applies to ,[.....] too. These all have an extra space as an option.
-					// Geitz has issues with posessive form (i.e. Geitz's) since z' isn't a valid combination.
-					// Letters with colons after them might also cause issues. (i.e. Nino:)
-					if (entry.stream == null) {
-						// Try the short pause.
-						if (entry.followups.get((char)(0x1f)) != null) {
-							result.appendStream(entry.followups.get((char)(0x1f)).stream);
-						}
-						// Try a space.
-						else if (entry.followups.get(' ') != null) {
-							result.appendStream(entry.followups.get(' ').stream);
-						}
-					} else {
-						result.appendStream(entry.stream);
+				break;
+			}
+			
+			if (appendPair(result, encoderIndex, provider.peekNext() & 0xFF)) {
+				provider.advance();
+			} else {
+				// ?[A] is apparently not a valid combo in the huffman table... (for FE7)
+				// Maybe we can use a space instead in this case.
+				// Applies to ,[.....] too. These all have an extra space as an option.
+				// Geitz has issues with posessive form (i.e. Geitz's) since z' isn't a valid combination.
+				// Letters with colons after them might also cause issues. (i.e. Nino:)
+				if (!hasSingleCode) {
+					// Try the short pause, then a space.
+					if (!appendPair(result, encoderIndex, 0x1f)) {
+						appendPair(result, encoderIndex, ' ');
 					}
+				} else {
+					result.append(singleCodes[encoderIndex], singleCodeLengths[encoderIndex]);
 				}
 			}
 			
 			provider.advance();
 		}
 		
-		if (!result.hasSuffix(terminatorBitstream)) {
-			result.appendStream(terminatorBitstream);
+		if (!result.hasSuffix(terminatorCode, terminatorCodeLength)) {
+			result.append(terminatorCode, terminatorCodeLength);
 		}
 		
 		return result.toByteArray();
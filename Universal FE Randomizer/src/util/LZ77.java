@@ -1,75 +1,70 @@
 package util;
 
-import io.FileHandler;
+import java.util.Arrays;
+
+import io.RomImage;
 
 public class LZ77 {
 	
-	public static byte[] decompress(FileHandler handler, long offset) {
-		// Read the first 4 bytes. Byte 0 should be 1 for LZ77 compression.
-		// Bytes 1-3 should be the size of the decompressed data.
-		byte[] header = handler.readBytesAtOffset(offset, 4);
-		if (header[0] != 0x10) { return null; }
+	// The decompressed data along with how many bytes of compressed data it came from.
+	public static class DecompressionResult {
+		public final byte[] data;
+		public final int compressedLength; // Includes any padding up to the next 4 byte boundary.
+		
+		private DecompressionResult(byte[] data, int compressedLength) {
+			this.data = data;
+			this.compressedLength = compressedLength;
+		}
+	}
+	
+	public static byte[] decompress(RomImage handler, long offset) {
+		DecompressionResult result = decompressWithLength(handler, offset);
+		return result != null ? result.data : null;
+	}
+	
+	public static int compressedLength(RomImage handler, long offset) {
+		DecompressionResult result = decompressWithLength(handler, offset);
+		return result != null ? result.compressedLength : 0;
+	}
+	
+	// Reads the compressed block at offset in one go and decompresses it. Returns null if there isn't a valid LZ77 block there.
+	public static DecompressionResult decompressWithLength(RomImage handler, long offset) {
+		byte[] header = new byte[4];
+		if (handler.getBytes(offset, header, 0, 4) < 4 || header[0] != 0x10) { return null; }
 		int size = (header[1] & 0xFF) | ((header[2] & 0xFF) << 8) | ((header[3] & 0xFF) << 16);
 		
-		byte[] output = new byte[size];
+		// Worst case, every byte is a literal, which costs an extra flag byte for every 8 bytes.
+		int maximumLength = 4 + size + (size + 7) / 8;
+		byte[] input = new byte[maximumLength];
+		int inputLength = handler.getBytes(offset, input, 0, maximumLength);
 		
-		int outputIndex = 0;
-		
-		while (outputIndex < size) {
-			byte flag = handler.continueReadingNextByte();
-			for (int i = 0; i < 8; i++) {
-				if (outputIndex >= size) { break; }
-				if ((flag & (1 << 7 - i)) == 0) {
-					// The next byte is uncompressed. Read it into the output as is.
-					byte uncompressedByte = handler.continueReadingNextByte();
-					output[outputIndex++] = uncompressedByte;
-				} else {
-					// The next byte is compressed.
-					// Bits 0 - 3 are the MSBs of the offset
-					// Bits 4 - 7 are the number of bytes to copy (which we need to add 3 to for the actual number)
-					// Bits 8 - 15 are the LSBs of the offset
-					// The actual operation reads from the bytes written so far, less the offset in the compressed byte, and then minus another one.
-					// For example: F0 1F -> 1FF0 (remember, little endian)
-					// 0 - MSBs of the offset
-					// F - Read 15 (+3) bytes
-					// 1F - LSBs of the offset (31 + 1)
-					// Means to go back 32 (31 + 1) bytes and read 18 bytes from what's been written so far.
-					byte compressedByte = handler.continueReadingNextByte();
-					byte compressedByte2 = handler.continueReadingNextByte();
-					int jumpDistance = (((compressedByte & 0xF) << 16) | (compressedByte2 & 0xFF)) + 1;
-					int bytesToCopy = ((compressedByte & 0xF0) >> 4) + 3;
-					for (int j = 0; j < bytesToCopy; j++) {
-						int sourceIndex = outputIndex - jumpDistance;
-						output[outputIndex++] = output[sourceIndex];
-					}
-				}
-			}
-		}
-		
-		return output;
+		return decompressWithLength(input, 0, inputLength, offset);
 	}
 	
-	public static int compressedLength(FileHandler handler, long offset) {
-		byte[] header = handler.readBytesAtOffset(offset, 4);
-		if (header[0] != 0x10) { return 0; }
-		int size = (header[1] & 0xFF) | ((header[2] & 0xFF) << 8) | ((header[3] & 0xFF) << 16);
+	// Decompresses the block starting at input[offset], reading no more than length bytes.
+	public static DecompressionResult decompressWithLength(byte[] input, int offset, int length) {
+		return decompressWithLength(input, offset, length, offset);
+	}
+	
+	// sourceOffset is where the block came from (i.e. in the ROM), and is only used for error messages.
+	private static DecompressionResult decompressWithLength(byte[] input, int offset, int length, long sourceOffset) {
+		int inputEnd = offset + length;
+		if (length < 4 || input[offset] != 0x10) { return null; }
+		int size = (input[offset + 1] & 0xFF) | ((input[offset + 2] & 0xFF) << 8) | ((input[offset + 3] & 0xFF) << 16);
 		
 		byte[] output = new byte[size];
 		
 		int outputIndex = 0;
-		
-		int bytesRead = 4;
+		int inputIndex = offset + 4;
 		
 		while (outputIndex < size) {
-			byte flag = handler.continueReadingNextByte();
-			bytesRead++;
-			for (int i = 0; i < 8; i++) {
-				if (outputIndex >= size) { break; }
-				if ((flag & (1 << 7 - i)) == 0) {
+			if (inputIndex >= inputEnd) { return truncated(sourceOffset); }
+			int flag = input[inputIndex++] & 0xFF;
+			for (int mask = 0x80; mask != 0 && outputIndex < size; mask >>= 1) {
+				if ((flag & mask) == 0) {
 					// The next byte is uncompressed. Read it into the output as is.
-					byte uncompressedByte = handler.continueReadingNextByte();
-					bytesRead++;
-					output[outputIndex++] = uncompressedByte;
+					if (inputIndex >= inputEnd) { return truncated(sourceOffset); }
+					output[outputIndex++] = input[inputIndex++];
 				} else {
 					// The next byte is compressed.
 					// Bits 0 - 3 are the MSBs of the offset
@@ -81,153 +76,157 @@ public class LZ77 {
 					// F - Read 15 (+3) bytes
 					// 1F - LSBs of the offset (31 + 1)
 					// Means to go back 32 (31 + 1) bytes and read 18 bytes from what's been written so far.
-					byte compressedByte = handler.continueReadingNextByte();
-					bytesRead++;
-					byte compressedByte2 = handler.continueReadingNextByte();
-					bytesRead++;
-					int jumpDistance = (((compressedByte & 0xF) << 16) | (compressedByte2 & 0xFF)) + 1;
-					int bytesToCopy = ((compressedByte & 0xF0) >> 4) + 3;
-					for (int j = 0; j < bytesToCopy; j++) {
-						int sourceIndex = outputIndex - jumpDistance;
-						output[outputIndex++] = output[sourceIndex];
+					if (inputIndex + 1 >= inputEnd) { return truncated(sourceOffset); }
+					int compressedByte = input[inputIndex++] & 0xFF;
+					int compressedByte2 = input[inputIndex++] & 0xFF;
+					int jumpDistance = (((compressedByte & 0xF) << 8) | compressedByte2) + 1;
+					int bytesToCopy = Math.min((compressedByte >> 4) + 3, size - outputIndex);
+					int sourceIndex = outputIndex - jumpDistance;
+					if (sourceIndex < 0) {
+						System.err.println("Invalid LZ77 back reference in block at offset 0x" + Long.toHexString(sourceOffset).toUpperCase());
+						return null;
+					}
+					
+					if (jumpDistance >= bytesToCopy) {
+						System.arraycopy(output, sourceIndex, output, outputIndex, bytesToCopy);
+						outputIndex += bytesToCopy;
+					} else {
+						// The copy overlaps what it's writing (i.e. a repeating pattern), so it has to go one byte at a time.
+						for (int j = 0; j < bytesToCopy; j++) {
+							output[outputIndex++] = output[sourceIndex++];
+						}
 					}
 				}
 			}
 		}
+		
 		// These have to be byte aligned, so they should be divisible by 4. Round up if it's not.
-		return bytesRead + (bytesRead % 4 == 0 ? 0 : 4 - (bytesRead % 4));
+		int bytesRead = inputIndex - offset;
+		return new DecompressionResult(output, bytesRead + (bytesRead % 4 == 0 ? 0 : 4 - (bytesRead % 4)));
+	}
+	
+	private static DecompressionResult truncated(long sourceOffset) {
+		System.err.println("LZ77 block at offset 0x" + Long.toHexString(sourceOffset).toUpperCase() + " is truncated.");
+		return null;
 	}
 	
 	public static byte[] decompress(byte[] inputBytes) {
-		byte[] header = new byte[4];
-		WhyDoesJavaNotHaveThese.copyBytesIntoByteArrayAtIndex(inputBytes, header, 0, 4);
-		if (header[0] != 0x10) { return null; }
-		int size = (header[1] & 0xFF) | ((header[2] & 0xFF) << 8) | ((header[3] & 0xFF) << 16);
-		
-		byte[] output = new byte[size];
-		
-		int outputIndex = 0;
-		int inputIndex = 4;
-		
-		while (outputIndex < size) {
-			byte flag = inputBytes[inputIndex++];
-			for (int i = 0; i < 8; i++) {
-				if (outputIndex >= size) { break; }
-				if ((flag & (1 << 7 - i)) == 0) {
-					byte uncompressedByte = inputBytes[inputIndex++];
-					output[outputIndex++] = uncompressedByte;
-				} else {
-					byte compressedByte = inputBytes[inputIndex++];
-					byte compressedByte2 = inputBytes[inputIndex++];
-					int jumpDistance = (((compressedByte & 0xF) << 16) | (compressedByte2 & 0xFF)) + 1;
-					int bytesToCopy = ((compressedByte & 0xF0) >> 4) + 3;
-					for (int j = 0; j < bytesToCopy; j++) {
-						int sourceIndex = outputIndex - jumpDistance;
-						output[outputIndex++] = output[sourceIndex];
-					}
-				}	
-			}
-		}
-		
-		return output;
+		DecompressionResult result = decompressWithLength(inputBytes, 0, inputBytes.length);
+		return result != null ? result.data : null;
 	}
 	
+	// The format allows back references up to 4096 bytes back and 18 bytes long. Anything shorter than 3 bytes isn't worth a reference.
+	private static final int WindowSize = 0x1000;
+	private static final int MinimumMatchLength = 3;
+	private static final int MaximumMatchLength = 18;
+	
+	private static final int MaximumHashBits = 12;
+	
+	// Compresses using the smallest possible encoding.
+	// The longest match at every position is found with hash chains (every earlier occurrence of the same 3 bytes within the window is linked),
+	// and then the cheapest way to split the input into literals and references is worked out from the end backwards.
+	// Since the flag byte for each group of 8 blocks is part of the cost, this accounts for it too. The result is never larger than a greedy encoding.
 	public static byte[] compress(byte[] decompressed) {
 		if (decompressed == null) { return null; }
 		
-		byte[] header = new byte[4];
-		header[0] = (byte)0x10; // Header to mark an LZ77 compressed block of data.
 		int size = decompressed.length;
-		header[1] = (byte)(size & 0xFF);
-		header[2] = (byte)((size >> 8) & 0xFF);
-		header[3] = (byte)((size >> 16) & 0xFF);
 		
-		int inputOffset = 0;
-		
-		byte[] compressedData = new byte[255];
-		int outputOffset = 0;
-		
-		WhyDoesJavaNotHaveThese.copyBytesIntoByteArrayAtIndex(header, compressedData, outputOffset, header.length);
-		outputOffset += header.length;
-		
-		while (inputOffset < size) {
-			byte[] currentBlock = new byte[16]; // At most we can have 16 bytes (uncompressed blocks are 1 byte, compressed blocks are 2 bytes)
-			int blockIndex = 0;
-			byte flag = 0;
+		// Find the longest match (and the distance to it) at every position.
+		int[] matchLengths = new int[size];
+		int[] matchDistances = new int[size];
+		// Palettes are tiny, so there's no point in a hash table bigger than the input.
+		int hashBits = Math.max(4, Math.min(MaximumHashBits, 32 - Integer.numberOfLeadingZeros(size)));
+		int[] head = new int[1 << hashBits];
+		Arrays.fill(head, -1);
+		int[] previous = new int[size];
+		
+		for (int position = 0; position + MinimumMatchLength <= size; position++) {
+			int hash = hashAt(decompressed, position, hashBits);
+			int maximumLength = Math.min(MaximumMatchLength, size - position);
 			
-			for (int i = 0; i < 8; i++) {
-				if (inputOffset >= decompressed.length) { break; }
-				byte currentInputByte = decompressed[inputOffset];
-				boolean patternMatched = false;
-				int index = 0; // This will keep track of the location of the first byte that matched.
-				// I think the window can only look back 32 bytes at most, so we should lock it there.
-				for (index = Math.max(0, inputOffset - 32); index < inputOffset; index++) {
-					if (decompressed[index] == currentInputByte) {
-						patternMatched = true;
-						break; 
+			int candidate = head[hash];
+			while (candidate >= 0 && position - candidate <= WindowSize) {
+				if (decompressed[candidate] == decompressed[position] && decompressed[candidate + 1] == decompressed[position + 1] && decompressed[candidate + 2] == decompressed[position + 2]) {
+					int length = MinimumMatchLength;
+					// This can run past position, which is fine. The decompressor copies one byte at a time.
+					while (length < maximumLength && decompressed[candidate + length] == decompressed[position + length]) { length++; }
+					if (length > matchLengths[position]) {
+						matchLengths[position] = length;
+						matchDistances[position] = position - candidate;
+						if (length == maximumLength) { break; }
 					}
 				}
+				candidate = previous[candidate];
+			}
+			
+			previous[position] = head[hash];
+			head[hash] = position;
+		}
+		
+		// cost[position * 8 + blockIndex] is the number of bytes needed to encode everything from position onwards,
+		// if blockIndex blocks have already been written under the current flag byte.
+		// choice holds the length that gets there (1 for a literal).
+		int[] cost = new int[(size + 1) * 8];
+		byte[] choice = new byte[size * 8];
+		for (int position = size - 1; position >= 0; position--) {
+			for (int blockIndex = 0; blockIndex < 8; blockIndex++) {
+				int flagCost = blockIndex == 0 ? 1 : 0;
+				int nextBlockIndex = (blockIndex + 1) & 7;
 				
-				if (patternMatched) {
-					// We need three matching bytes at a minimum to use compression.
-					byte[] matchedBytes = new byte[18]; // GBA can only pull 18 matching bytes at most.
-					int matchedArrayIndex = 0;
-					matchedBytes[matchedArrayIndex++] = currentInputByte;
-					for (int j = 1; j < 18; j++) {
-						if (inputOffset + j >= decompressed.length) { break; }
-						if (decompressed[inputOffset + j] == decompressed[index + j]) {
-							matchedBytes[matchedArrayIndex++] = decompressed[inputOffset + j];
-						} else {
-							break;
-						}
-					}
-					
-					// We can't write more than we have space for in the current set of blocks.
-					int writtenLength = matchedArrayIndex;
-					
-					if (writtenLength < 3) {
-						// This match is too small to compress. Write the bytes as uncompressed. Only write as many as can fit.
-						writtenLength = Math.min(matchedArrayIndex, 8 - i);
-						for (int j = 0; j < writtenLength; j++) {
-							currentBlock[blockIndex++] = matchedBytes[j];
-						}
-						i += (writtenLength - 1);
-					} else {
-						// We can compress this.
-						int offset = inputOffset - index - 1;
-						int numBytes = writtenLength;
-						byte compressed = (byte)((offset >> 16) & 0xFF);
-						compressed |= (((numBytes - 3) & 0xF) << 4);
-						byte lsb = (byte)(offset & 0xFF);
-						currentBlock[blockIndex++] = compressed;
-						currentBlock[blockIndex++] = lsb;
-						int mask = 1 << (7 - i);
-						flag |= mask; // Mark block as compressed.
+				int bestCost = flagCost + 1 + cost[(position + 1) * 8 + nextBlockIndex];
+				int bestLength = 1;
+				for (int length = MinimumMatchLength; length <= matchLengths[position]; length++) {
+					int matchCost = flagCost + 2 + cost[(position + length) * 8 + nextBlockIndex];
+					if (matchCost < bestCost) {
+						bestCost = matchCost;
+						bestLength = length;
 					}
-					
-					inputOffset += writtenLength;
-				} else {
-					// This byte is new and needs to be stored uncompressed.
-					currentBlock[blockIndex++] = currentInputByte;
-					inputOffset++;
 				}
+				
+				cost[position * 8 + blockIndex] = bestCost;
+				choice[position * 8 + blockIndex] = (byte)bestLength;
 			}
-			
-			compressedData[outputOffset++] = flag;
-			WhyDoesJavaNotHaveThese.copyBytesIntoByteArrayAtIndex(currentBlock, compressedData, outputOffset, blockIndex);
-			outputOffset += blockIndex;
 		}
 		
-		int outputSize = outputOffset;
-		int paddingNecessary = 4 - (outputOffset % 4);
-		if (paddingNecessary % 4 != 0) {
-			outputSize += paddingNecessary;
+		// These have to be byte aligned, so they should be divisible by 4. Round up if it's not.
+		int outputSize = 4 + cost[0];
+		outputSize += (4 - (outputSize % 4)) % 4;
+		byte[] compressedData = new byte[outputSize];
+		
+		compressedData[0] = (byte)0x10; // Header to mark an LZ77 compressed block of data.
+		compressedData[1] = (byte)(size & 0xFF);
+		compressedData[2] = (byte)((size >> 8) & 0xFF);
+		compressedData[3] = (byte)((size >> 16) & 0xFF);
+		
+		int outputOffset = 4;
+		int flagOffset = 0;
+		int blockIndex = 0;
+		int position = 0;
+		while (position < size) {
+			if (blockIndex == 0) {
+				flagOffset = outputOffset++;
+			}
+			
+			int length = choice[position * 8 + blockIndex];
+			if (length == 1) {
+				compressedData[outputOffset++] = decompressed[position];
+			} else {
+				int offset = matchDistances[position] - 1;
+				compressedData[flagOffset] |= (byte)(0x80 >> blockIndex); // Mark block as compressed.
+				compressedData[outputOffset++] = (byte)((((length - MinimumMatchLength) & 0xF) << 4) | ((offset >> 8) & 0xF));
+				compressedData[outputOffset++] = (byte)(offset & 0xFF);
+			}
+			
+			position += length;
+			blockIndex = (blockIndex + 1) & 7;
 		}
 		
-		byte[] truncated = new byte[outputSize];
-		WhyDoesJavaNotHaveThese.copyBytesIntoByteArrayAtIndex(compressedData, truncated, 0, outputOffset);
-		
-		return truncated;
+		return compressedData;
+	}
+	
+	private static int hashAt(byte[] data, int position, int hashBits) {
+		int value = (data[position] & 0xFF) | ((data[position + 1] & 0xFF) << 8) | ((data[position + 2] & 0xFF) << 16);
+		return (value * 0x9E3779B1) >>> (32 - hashBits);
 	}
 
 }
@@ -0,0 +1,198 @@
+package util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import fedata.gba.fe6.FE6Data;
+import fedata.gba.fe7.FE7Data;
+import fedata.gba.fe8.FE8Data;
+import io.FileHandler;
+
+// Compares LZ77.compress against the compressor it replaced, using every palette in a clean FE6, FE7, or FE8 ROM.
+//
+// Usage: LZ77Benchmark <path to ROM> [iterations]
+//
+// Each compressor is run over the whole set of palettes once to warm up, then [iterations] more times (default 200) for the timing.
+// Every result is also decompressed again to make sure it gives back the original palette.
+public class LZ77Benchmark {
+	
+	private static final int DefaultIterations = 200;
+	
+	private interface Compressor {
+		public byte[] compress(byte[] decompressed);
+	}
+	
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: LZ77Benchmark <path to ROM> [iterations]");
+			return;
+		}
+		
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : DefaultIterations;
+		
+		List<byte[]> palettes;
+		try {
+			FileHandler handler = new FileHandler(args[0]);
+			palettes = readPalettes(handler);
+			handler.close();
+		} catch (IOException e) {
+			System.err.println("Failed to open " + args[0]);
+			e.printStackTrace();
+			return;
+		}
+		
+		if (palettes == null) {
+			System.err.println(args[0] + " isn't a clean FE6, FE7, or FE8 ROM.");
+			return;
+		}
+		
+		System.out.println("Read " + palettes.size() + " palettes. Running " + iterations + " iterations.");
+		run("Legacy", LZ77Benchmark::legacyCompress, palettes, iterations);
+		run("Current", LZ77::compress, palettes, iterations);
+	}
+	
+	private static List<byte[]> readPalettes(FileHandler handler) {
+		long tableOffset;
+		int entryCount;
+		int entrySize;
+		
+		long crc = handler.getCRC32();
+		if (crc == FE6Data.CleanCRC32) { tableOffset = FE6Data.PaletteTableOffset; entryCount = FE6Data.PaletteEntryCount; entrySize = FE6Data.PaletteEntrySize; }
+		else if (crc == FE7Data.CleanCRC32) { tableOffset = FE7Data.PaletteTableOffset; entryCount = FE7Data.PaletteEntryCount; entrySize = FE7Data.PaletteEntrySize; }
+		else if (crc == FE8Data.CleanCRC32) { tableOffset = FE8Data.PaletteTableOffset; entryCount = FE8Data.PaletteEntryCount; entrySize = FE8Data.PaletteEntrySize; }
+		else { return null; }
+		
+		List<byte[]> palettes = new ArrayList<byte[]>();
+		for (int i = 0; i < entryCount; i++) {
+			long paletteOffset = handler.getGBAPointer(tableOffset + i * entrySize);
+			if (paletteOffset == -1) { continue; }
+			byte[] palette = LZ77.decompress(handler, paletteOffset);
+			if (palette != null && palette.length > 0) { palettes.add(palette); }
+		}
+		
+		return palettes;
+	}
+	
+	private static void run(String name, Compressor compressor, List<byte[]> palettes, int iterations) {
+		long totalSize = 0;
+		int mismatches = 0;
+		for (byte[] palette : palettes) {
+			byte[] compressed = compressor.compress(palette);
+			totalSize += compressed.length;
+			if (!Arrays.equals(LZ77.decompress(compressed), palette)) { mismatches++; }
+		}
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			for (byte[] palette : palettes) {
+				compressor.compress(palette);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		
+		long uncompressedSize = 0;
+		for (byte[] palette : palettes) { uncompressedSize += palette.length; }
+		
+		System.out.println(String.format("%-8s %8.3f ms per pass, %6d bytes (%.1f%% of %d), %d round trip failures",
+				name, elapsed / 1000000.0 / iterations, totalSize, 100.0 * totalSize / uncompressedSize, uncompressedSize, mismatches));
+	}
+	
+	// The compressor LZ77.compress replaced, kept as-is apart from sizing the output buffer for any input.
+	// Only looks back 32 bytes and takes the first byte that matches, so it's fast, but it misses most matches.
+	static byte[] legacyCompress(byte[] decompressed) {
+		if (decompressed == null) { return null; }
+		
+		byte[] header = new byte[4];
+		header[0] = (byte)0x10; // Header to mark an LZ77 compressed block of data.
+		int size = decompressed.length;
+		header[1] = (byte)(size & 0xFF);
+		header[2] = (byte)((size >> 8) & 0xFF);
+		header[3] = (byte)((size >> 16) & 0xFF);
+		
+		int inputOffset = 0;
+		
+		byte[] compressedData = new byte[header.length + size + (size + 7) / 8];
+		int outputOffset = 0;
+		
+		WhyDoesJavaNotHaveThese.copyBytesIntoByteArrayAtIndex(header, compressedData, outputOffset, header.length);
+		outputOffset += header.length;
+		
+		while (inputOffset < size) {
+			byte[] currentBlock = new byte[16]; // At most we can have 16 bytes (uncompressed blocks are 1 byte, compressed blocks are 2 bytes)
+			int blockIndex = 0;
+			byte flag = 0;
+			
+			for (int i = 0; i < 8; i++) {
+				if (inputOffset >= decompressed.length) { break; }
+				byte currentInputByte = decompressed[inputOffset];
+				boolean patternMatched = false;
+				int index = 0; // This will keep track of the location of the first byte that matched.
+				for (index = Math.max(0, inputOffset - 32); index < inputOffset; index++) {
+					if (decompressed[index] == currentInputByte) {
+						patternMatched = true;
+						break;
+					}
+				}
+				
+				if (patternMatched) {
+					// We need three matching bytes at a minimum to use compression.
+					byte[] matchedBytes = new byte[18]; // GBA can only pull 18 matching bytes at most.
+					int matchedArrayIndex = 0;
+					matchedBytes[matchedArrayIndex++] = currentInputByte;
+					for (int j = 1; j < 18; j++) {
+						if (inputOffset + j >= decompressed.length) { break; }
+						if (decompressed[inputOffset + j] == decompressed[index + j]) {
+							matchedBytes[matchedArrayIndex++] = decompressed[inputOffset + j];
+						} else {
+							break;
+						}
+					}
+					
+					int writtenLength = matchedArrayIndex;
+					
+					if (writtenLength < 3) {
+						// This match is too small to compress. Write the bytes as uncompressed. Only write as many as can fit.
+						writtenLength = Math.min(matchedArrayIndex, 8 - i);
+						for (int j = 0; j < writtenLength; j++) {
+							currentBlock[blockIndex++] = matchedBytes[j];
+						}
+						i += (writtenLength - 1);
+					} else {
+						int offset = inputOffset - index - 1;
+						int numBytes = writtenLength;
+						byte compressed = (byte)((offset >> 16) & 0xFF);
+						compressed |= (((numBytes - 3) & 0xF) << 4);
+						byte lsb = (byte)(offset & 0xFF);
+						currentBlock[blockIndex++] = compressed;
+						currentBlock[blockIndex++] = lsb;
+						int mask = 1 << (7 - i);
+						flag |= mask; // Mark block as compressed.
+					}
+					
+					inputOffset += writtenLength;
+				} else {
+					// This byte is new and needs to be stored uncompressed.
+					currentBlock[blockIndex++] = currentInputByte;
+					inputOffset++;
+				}
+			}
+			
+			compressedData[outputOffset++] = flag;
+			WhyDoesJavaNotHaveThese.copyBytesIntoByteArrayAtIndex(currentBlock, compressedData, outputOffset, blockIndex);
+			outputOffset += blockIndex;
+		}
+		
+		int outputSize = outputOffset;
+		int paddingNecessary = 4 - (outputOffset % 4);
+		if (paddingNecessary % 4 != 0) {
+			outputSize += paddingNecessary;
+		}
+		
+		byte[] truncated = new byte[outputSize];
+		WhyDoesJavaNotHaveThese.copyBytesIntoByteArrayAtIndex(compressedData, truncated, 0, outputOffset);
+		
+		return truncated;
+	}
+}
@@ -1,5 +1,8 @@
 package util;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Comparator;
 import java.util.List;
 
@@ -131,4 +134,15 @@ public class WhyDoesJavaNotHaveThese {
 			destination[offset + i] = source[i];
 		}
 	}
+	
+	public static byte[] readAllBytes(InputStream stream) throws IOException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream(Math.max(stream.available(), 1024));
+		byte[] chunk = new byte[16 * 1024];
+		int bytesRead;
+		while ((bytesRead = stream.read(chunk)) != -1) {
+			outputStream.write(chunk, 0, bytesRead);
+		}
+		
+		return outputStream.toByteArray();
+	}
 }